@@ -0,0 +1,69 @@
+package fr.lva.keycloak.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP server answering every request of a path with a fixed JSON response,
+ * standing for an external API such as Brevo
+ */
+public class StubHttpServer implements AutoCloseable {
+
+    static {
+        // Headers and body are written separately, Nagle would hold the body until the delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong requests = new AtomicLong();
+
+    public StubHttpServer(int threads) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return URI of the path on this server
+     */
+    public URI stub(String path, int status, String json) {
+        byte[] response = json.getBytes(StandardCharsets.UTF_8);
+        server.createContext(path, exchange -> respond(exchange, status, response));
+        return URI.create("http://" + server.getAddress().getHostString() + ':' + server.getAddress().getPort() + path);
+    }
+
+    private void respond(HttpExchange exchange, int status, byte[] response) throws IOException {
+        requests.incrementAndGet();
+        try (InputStream in = exchange.getRequestBody()) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
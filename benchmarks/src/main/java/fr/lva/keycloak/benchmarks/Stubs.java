@@ -0,0 +1,74 @@
+package fr.lva.keycloak.benchmarks;
+
+import org.keycloak.Config;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Minimal fakes of the Keycloak interfaces, built from JDK proxies.
+ * <p>
+ * Methods listed in the answers return the given value, or call it when it is a {@link Answer}.
+ * Other methods return null, false, zero or an empty stream.
+ */
+public final class Stubs {
+
+    private Stubs() {
+        // Utility class
+    }
+
+    @FunctionalInterface
+    public interface Answer extends Function<Object[], Object> {
+    }
+
+    public static <T> T of(Class<T> type, Map<String, Object> answers) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    Object answer = answers.get(method.getName());
+                    if (answer instanceof Answer function) {
+                        return function.apply(args);
+                    }
+                    if (answer != null) {
+                        return answer;
+                    }
+                    return switch (method.getName()) {
+                        case "equals" -> proxy == args[0];
+                        case "hashCode" -> System.identityHashCode(proxy);
+                        case "toString" -> type.getSimpleName() + "Stub";
+                        default -> defaultValue(method.getReturnType());
+                    };
+                }));
+    }
+
+    /**
+     * Provider configuration without any option set, every getter returns its default value
+     */
+    public static Config.Scope config() {
+        Answer defaultArgument = args -> args != null && args.length > 1 ? args[1] : null;
+        return of(Config.Scope.class, Map.of(
+                "get", defaultArgument,
+                "getInt", defaultArgument,
+                "getLong", defaultArgument,
+                "getBoolean", defaultArgument,
+                "getArray", defaultArgument,
+                "scope", (Answer) args -> config()));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == Stream.class) {
+            return Stream.empty();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,92 @@
+package fr.lva.keycloak.benchmarks.email;
+
+import fr.lva.keycloak.email.brevo.BrevoMessage;
+import fr.lva.keycloak.email.brevo.BrevoPayloadWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the Brevo request bodies, run with {@code -prof gc} for the allocations per operation
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrevoPayloadBenchmark {
+
+    @Param({"1", "50"})
+    private int batchSize;
+
+    private final BrevoPayloadWriter writer = new BrevoPayloadWriter(1);
+    private final CountingOutputStream out = new CountingOutputStream();
+    private BrevoMessage message;
+    private List<BrevoMessage> batch;
+
+    @Setup
+    public void setUp() {
+        String body = """
+                Quelqu'un vient de demander une réinitialisation de mot de passe pour votre compte Hachette Livre.
+                <br/>Si vous êtes à l'origine de cette requête, veuillez cliquer sur le lien ci-dessous pour le mettre à jour : <br/>
+                https://sso.example.com/realms/test/login-actions/action-token?key=eyJhbGciOiJIUzI1NiJ9.benchmark
+                """;
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(message("user" + i + "@example.com", body));
+        }
+        message = batch.get(0);
+    }
+
+    static BrevoMessage message(String recipient, String body) {
+        return new BrevoMessage("realm-id", null, "no-reply@kiosque-edu.com", "Hachette Livre", recipient,
+                "Réinitialiser le mot de passe", body, null, body);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        out.count = 0;
+        writer.write(message, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long writeBatch() throws IOException {
+        out.count = 0;
+        writer.writeBatch(batch, out);
+        return out.count;
+    }
+
+    /**
+     * Sink keeping only the size, so the benchmark measures the serialization alone
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package fr.lva.keycloak.benchmarks.email;
+
+import fr.lva.keycloak.benchmarks.StubHttpServer;
+import fr.lva.keycloak.benchmarks.Stubs;
+import fr.lva.keycloak.email.brevo.BrevoCircuitBreaker;
+import fr.lva.keycloak.email.brevo.BrevoClient;
+import fr.lva.keycloak.email.brevo.BrevoMessage;
+import fr.lva.keycloak.email.brevo.BrevoRetryPolicy;
+import fr.lva.keycloak.email.provider.CustomEmailSenderProvider;
+import fr.lva.keycloak.email.routing.EmailTransportRouter;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brevo round trip against a local stub server, from the client alone and from the email sender provider
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class BrevoSendBenchmark {
+
+    private static final String BODY = "Si vous êtes à l'origine de cette requête, veuillez cliquer sur le lien ci-dessous : <br/>"
+            + "https://sso.example.com/realms/test/login-actions/action-token?key=benchmark";
+
+    private StubHttpServer brevo;
+    private BrevoClient brevoClient;
+    private CustomEmailSenderProvider provider;
+    private BrevoMessage message;
+    private UserModel user;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        brevo = new StubHttpServer(8);
+        brevoClient = new BrevoClient(
+                brevo.stub("/v3/smtp/email", 201, "{\"messageId\":\"<benchmark@smtp-relay.mailin.fr>\"}"),
+                "xkeysib-benchmark",
+                Duration.ofSeconds(5),
+                Duration.ofSeconds(10),
+                32,
+                4,
+                // Never opens, a slow stub must show up in the scores
+                new BrevoCircuitBreaker(20, 20, 101, 60_000, 101, 0, 1),
+                new BrevoRetryPolicy(1, 0, 0, 0, false, 0),
+                TimeUnit.SECONDS.toNanos(1),
+                false
+        );
+        message = BrevoPayloadBenchmark.message("user@example.com", BODY);
+
+        ClientModel client = Stubs.of(ClientModel.class, Map.of(
+                "getId", "client-id",
+                "getAttribute", (Stubs.Answer) args -> "login_theme".equals(args[0]) ? "theme-hachette" : null));
+        RealmModel realm = Stubs.of(RealmModel.class, Map.of("getId", "realm-id", "getName", "test"));
+        KeycloakContext context = Stubs.of(KeycloakContext.class, Map.of("getClient", client, "getRealm", realm));
+        KeycloakSession session = Stubs.of(KeycloakSession.class, Map.of("getContext", context));
+        user = Stubs.of(UserModel.class, Map.of("getEmail", "user@example.com", "getUsername", "user"));
+        Executor inline = Runnable::run;
+        provider = new CustomEmailSenderProvider(session, brevoClient, null,
+                new EmailTransportRouter("theme-hachette", 300), inline);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        brevoClient.close();
+        brevo.close();
+    }
+
+    @Benchmark
+    public void clientSend() throws IOException, InterruptedException, EmailException {
+        brevoClient.send(message);
+    }
+
+    @Benchmark
+    public void clientSendAsync() {
+        brevoClient.sendAsync(message).join();
+    }
+
+    /**
+     * Routing, message building, retry loop and metrics included
+     */
+    @Benchmark
+    public void providerSend() throws EmailException {
+        provider.send(Map.of(), user, "Réinitialiser le mot de passe", BODY, BODY);
+    }
+}
@@ -0,0 +1,55 @@
+package fr.lva.keycloak.benchmarks.email;
+
+import fr.lva.keycloak.benchmarks.Stubs;
+import fr.lva.keycloak.email.routing.EmailTransport;
+import fr.lva.keycloak.email.routing.EmailTransportRouter;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per request routing decision, with a warm cache and with a cache expiring on every call
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmailTransportRouterBenchmark {
+
+    @Param({"300", "0"})
+    private long cacheTtl;
+
+    private EmailTransportRouter router;
+    private KeycloakSession session;
+
+    @Setup
+    public void setUp() {
+        router = new EmailTransportRouter("theme-hachette", cacheTtl);
+        ClientModel client = Stubs.of(ClientModel.class, Map.of(
+                "getId", "client-id",
+                "getAttribute", (Stubs.Answer) args -> "login_theme".equals(args[0]) ? "theme-hachette" : null));
+        KeycloakContext context = Stubs.of(KeycloakContext.class, Map.of("getClient", client));
+        session = Stubs.of(KeycloakSession.class, Map.of("getContext", context));
+    }
+
+    @Benchmark
+    public EmailTransport resolve() {
+        return router.resolve(session);
+    }
+}
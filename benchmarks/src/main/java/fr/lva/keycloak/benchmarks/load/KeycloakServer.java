@@ -0,0 +1,128 @@
+package fr.lva.keycloak.benchmarks.load;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keycloak distribution started in dev mode with an in-memory database and the provider deployed.
+ * <p>
+ * The server output is read to count the SQL statements logged by Hibernate.
+ */
+public class KeycloakServer implements AutoCloseable {
+
+    private static final long START_TIMEOUT_SECONDS = 180;
+
+    private final Process process;
+    private final String url;
+    private final AtomicLong sqlStatements = new AtomicLong();
+
+    private KeycloakServer(Process process, String url) {
+        this.process = process;
+        this.url = url;
+    }
+
+    /**
+     * @param options extra server options, ex : SPI configuration pointing to the stubs
+     */
+    public static KeycloakServer start(LoadTestOptions loadTestOptions, List<String> options)
+            throws IOException, InterruptedException {
+        Path home = loadTestOptions.keycloakHome();
+        Files.copy(loadTestOptions.providerJar(), home.resolve("providers").resolve("keycloak-custom-registration.jar"),
+                StandardCopyOption.REPLACE_EXISTING);
+
+        List<String> command = new ArrayList<>();
+        command.add(home.resolve("bin").resolve("kc.sh").toString());
+        command.add("start-dev");
+        command.add("--db=dev-mem");
+        command.add("--http-port=" + loadTestOptions.port());
+        if (loadTestOptions.countQueries()) {
+            command.add("--log-level=INFO,org.hibernate.SQL:debug");
+        }
+        command.addAll(options);
+
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        builder.environment().put("KEYCLOAK_ADMIN", loadTestOptions.adminUser());
+        builder.environment().put("KEYCLOAK_ADMIN_PASSWORD", loadTestOptions.adminPassword());
+        KeycloakServer server = new KeycloakServer(builder.start(), "http://localhost:" + loadTestOptions.port());
+        server.readOutput();
+        server.awaitStarted();
+        return server;
+    }
+
+    private void readOutput() {
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.contains("[org.hibernate.SQL]")) {
+                        sqlStatements.incrementAndGet();
+                    } else if (line.contains("ERROR") || line.contains("Listening on")) {
+                        System.out.println("[keycloak] " + line);
+                    }
+                }
+            } catch (IOException e) {
+                // Process stopped
+            }
+        }, "keycloak-output");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void awaitStarted() throws IOException, InterruptedException {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/realms/master")).GET().build();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(START_TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Keycloak stopped with exit code " + process.exitValue());
+            }
+            try {
+                if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            TimeUnit.SECONDS.sleep(1);
+        }
+        close();
+        throw new IllegalStateException("Keycloak not started after " + START_TIMEOUT_SECONDS + " seconds");
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return SQL statements logged so far, only counted with {@link LoadTestOptions#countQueries()}
+     */
+    public long getSqlStatements() {
+        return sqlStatements.get();
+    }
+
+    @Override
+    public void close() {
+        process.destroy();
+        try {
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package fr.lva.keycloak.benchmarks.load;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Options of the registration load test, given as {@code --name=value} arguments
+ */
+public class LoadTestOptions {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    public LoadTestOptions(String... args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + arg + ", expected --name=value");
+            }
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                values.put(arg.substring(2), "true");
+            } else {
+                values.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+    }
+
+    /**
+     * Keycloak distribution started by the load test, ignored if {@link #keycloakUrl()} is set
+     */
+    public Path keycloakHome() {
+        String home = values.getOrDefault("keycloak-home", System.getenv("KEYCLOAK_HOME"));
+        if (home == null) {
+            throw new IllegalArgumentException("--keycloak-home or KEYCLOAK_HOME is required to start Keycloak");
+        }
+        return Path.of(home);
+    }
+
+    /**
+     * URL of an already running Keycloak, null to start one
+     */
+    public String keycloakUrl() {
+        return values.get("keycloak-url");
+    }
+
+    public Path providerJar() {
+        return Path.of(values.getOrDefault("provider-jar", "../target/keycloak-custom-registration-25.0.2.jar"));
+    }
+
+    public int port() {
+        return Integer.parseInt(values.getOrDefault("port", "8180"));
+    }
+
+    public String adminUser() {
+        return values.getOrDefault("admin-user", "admin");
+    }
+
+    public String adminPassword() {
+        return values.getOrDefault("admin-password", "admin");
+    }
+
+    public String realm() {
+        return values.getOrDefault("realm", "load-test");
+    }
+
+    /**
+     * Login theme of the realm, it must provide the register-custom-*.ftl templates
+     */
+    public String theme() {
+        return values.getOrDefault("theme", "theme-hachette");
+    }
+
+    /**
+     * Concurrent virtual users
+     */
+    public int users() {
+        return Integer.parseInt(values.getOrDefault("users", "16"));
+    }
+
+    public int registrations() {
+        return Integer.parseInt(values.getOrDefault("registrations", "2000"));
+    }
+
+    public int warmup() {
+        return Integer.parseInt(values.getOrDefault("warmup", "200"));
+    }
+
+    /**
+     * Send the verification email at the end of the registration, through the Brevo stub
+     */
+    public boolean verifyEmail() {
+        return Boolean.parseBoolean(values.getOrDefault("verify-email", "true"));
+    }
+
+    /**
+     * Log the Hibernate SQL statements to count them, slows Keycloak down
+     */
+    public boolean countQueries() {
+        return Boolean.parseBoolean(values.getOrDefault("count-queries", "false"));
+    }
+}
@@ -0,0 +1,124 @@
+package fr.lva.keycloak.benchmarks.load;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Realm of the load test, created through the admin REST API : registration flow made of the
+ * three custom steps, without the per address registration throttle, and a public client routed to Brevo
+ */
+public class RealmSetup {
+
+    public static final String CLIENT_ID = "load-test";
+    public static final String REDIRECT_URI = "http://localhost/callback";
+    private static final String FLOW = "custom-registration";
+    private static final String[] STEPS = {"custom-credentials-form", "custom-personal-data-form", "custom-optins-form"};
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final String url;
+    private final LoadTestOptions options;
+    private String token;
+
+    public RealmSetup(String url, LoadTestOptions options) {
+        this.url = url;
+        this.options = options;
+    }
+
+    public void create() throws IOException, InterruptedException {
+        token = adminToken();
+        String realm = options.realm();
+        call("DELETE", "/admin/realms/" + realm, null, 404);
+        call("POST", "/admin/realms", Map.of(
+                "realm", realm,
+                "enabled", true,
+                "registrationAllowed", true,
+                "registrationEmailAsUsername", true,
+                "verifyEmail", options.verifyEmail(),
+                "loginTheme", options.theme(),
+                // Only used by the SMTP fallback, never reached while the Brevo stub answers
+                "smtpServer", Map.of("from", "no-reply@example.com", "host", "localhost", "port", "2525"),
+                // Every registration comes from the load test address, each with its own email
+                "attributes", Map.of("registrationMaxPerIp", "0")
+        ), 0);
+        call("POST", "/admin/realms/" + realm + "/clients", Map.of(
+                "clientId", CLIENT_ID,
+                "publicClient", true,
+                "standardFlowEnabled", true,
+                "redirectUris", List.of(REDIRECT_URI),
+                "attributes", Map.of("login_theme", options.theme())
+        ), 0);
+
+        String flows = "/admin/realms/" + realm + "/authentication/flows";
+        call("POST", flows, Map.of(
+                "alias", FLOW,
+                "providerId", "basic-flow",
+                "topLevel", true,
+                "builtIn", false
+        ), 0);
+        for (String step : STEPS) {
+            String subFlow = FLOW + " " + step;
+            call("POST", flows + "/" + encode(FLOW) + "/executions/flow", Map.of(
+                    "alias", subFlow,
+                    "type", "form-flow",
+                    "provider", step,
+                    "description", step
+            ), 0);
+            call("POST", flows + "/" + encode(subFlow) + "/executions/execution", Map.of("provider", step), 0);
+        }
+        List<Map<String, Object>> executions = mapper.readValue(call("GET", flows + "/" + encode(FLOW) + "/executions", null, 0),
+                new TypeReference<>() {});
+        for (Map<String, Object> execution : executions) {
+            execution.put("requirement", "REQUIRED");
+            call("PUT", flows + "/" + encode(FLOW) + "/executions", execution, 0);
+        }
+        call("PUT", "/admin/realms/" + realm, Map.of("registrationFlow", FLOW), 0);
+    }
+
+    private String adminToken() throws IOException, InterruptedException {
+        String form = "grant_type=password&client_id=admin-cli"
+                + "&username=" + encode(options.adminUser())
+                + "&password=" + encode(options.adminPassword());
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/realms/master/protocol/openid-connect/token"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Admin login failed with status " + response.statusCode());
+        }
+        return (String) mapper.readValue(response.body(), Map.class).get("access_token");
+    }
+
+    /**
+     * @param allowedStatus status accepted on top of the 2xx ones, 0 if none
+     */
+    private String call(String method, String path, Object body, int allowedStatus) throws IOException, InterruptedException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url + path))
+                .header("Authorization", "Bearer " + token)
+                .header("Content-Type", "application/json");
+        builder.method(method, body == null
+                ? HttpRequest.BodyPublishers.noBody()
+                : HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)));
+        HttpResponse<String> response = httpClient.send(builder.build(), HttpResponse.BodyHandlers.ofString());
+        int status = response.statusCode();
+        if ((status < 200 || status >= 300) && status != allowedStatus) {
+            throw new IllegalStateException(method + " " + path + " failed with status " + status + " : " + response.body());
+        }
+        return response.body();
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+}
@@ -0,0 +1,118 @@
+package fr.lva.keycloak.benchmarks.load;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Browser of a virtual user, submitting the registration pages like a user would
+ */
+public class RegistrationClient {
+
+    public enum Step {
+        CREDENTIALS,
+        PERSONAL_DATA,
+        OPTINS
+    }
+
+    private static final Pattern FORM_ACTION = Pattern.compile("<form[^>]*\\saction=\"([^\"]+)\"");
+
+    private final String registrationUrl;
+    private final StepLatencies latencies;
+    private final CookieManager cookies = new CookieManager();
+    private final HttpClient httpClient;
+
+    public RegistrationClient(String keycloakUrl, String realm, StepLatencies latencies) {
+        this.registrationUrl = keycloakUrl + "/realms/" + realm + "/protocol/openid-connect/registrations"
+                + "?client_id=" + RealmSetup.CLIENT_ID
+                + "&response_type=code&scope=openid"
+                + "&redirect_uri=" + URLEncoder.encode(RealmSetup.REDIRECT_URI, StandardCharsets.UTF_8);
+        this.latencies = latencies;
+        this.httpClient = HttpClient.newBuilder()
+                .cookieHandler(cookies)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .version(HttpClient.Version.HTTP_1_1)
+                .build();
+    }
+
+    /**
+     * Register a new user through the three steps
+     *
+     * @param email        unique email of the user
+     * @param verifyEmail  whether the realm shows the verify email page once registered
+     * @return true if the user is registered
+     */
+    public boolean register(String email, boolean verifyEmail) throws IOException, InterruptedException {
+        // New browser session for each registration
+        cookies.getCookieStore().removeAll();
+        HttpResponse<String> page = httpClient.send(HttpRequest.newBuilder(URI.create(registrationUrl)).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+
+        Map<String, List<String>> credentials = new LinkedHashMap<>();
+        credentials.put("email", List.of(email));
+        credentials.put("email-confirm", List.of(email));
+        credentials.put("password", List.of("Correct-Horse-Battery-9"));
+        credentials.put("password-confirm", List.of("Correct-Horse-Battery-9"));
+        page = submit(Step.CREDENTIALS, page, credentials);
+
+        Map<String, List<String>> personalData = new LinkedHashMap<>();
+        personalData.put("civility", List.of("Mme"));
+        personalData.put("lastName", List.of("Martin"));
+        personalData.put("firstName", List.of("Jeanne"));
+        personalData.put("profile", List.of("Enseignant", "Directeur"));
+        page = submit(Step.PERSONAL_DATA, page, personalData);
+
+        Map<String, List<String>> optins = new LinkedHashMap<>();
+        optins.put("uai", List.of("0751234A"));
+        optins.put("newsletter", List.of("on"));
+        optins.put("cgu", List.of("on"));
+        // Accepted by the reCAPTCHA stub when the flow requires it, unique so that it isn't seen as a replay
+        optins.put("g-recaptcha-response", List.of("load-test-" + email));
+        page = submit(Step.OPTINS, page, optins);
+        if (page == null) {
+            return false;
+        }
+
+        if (page.statusCode() == 302) {
+            return page.headers().firstValue("Location").map(location -> location.contains("code=")).orElse(false);
+        }
+        // Registered, waiting for the email to be verified
+        return verifyEmail && page.statusCode() == 200 && page.body().contains("VERIFY_EMAIL");
+    }
+
+    /**
+     * @return null if the page has no form, the previous step failed
+     */
+    private HttpResponse<String> submit(Step step, HttpResponse<String> page, Map<String, List<String>> fields)
+            throws IOException, InterruptedException {
+        if (page == null || page.statusCode() != 200) {
+            return null;
+        }
+        Matcher action = FORM_ACTION.matcher(page.body());
+        if (!action.find()) {
+            return null;
+        }
+        StringJoiner form = new StringJoiner("&");
+        fields.forEach((name, values) -> values.forEach(value -> form.add(
+                URLEncoder.encode(name, StandardCharsets.UTF_8) + '=' + URLEncoder.encode(value, StandardCharsets.UTF_8))));
+        HttpRequest request = HttpRequest.newBuilder(page.uri().resolve(action.group(1).replace("&amp;", "&")))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form.toString()))
+                .build();
+        long start = System.nanoTime();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        latencies.record(step, System.nanoTime() - start);
+        return response;
+    }
+}
@@ -0,0 +1,118 @@
+package fr.lva.keycloak.benchmarks.load;
+
+import fr.lva.keycloak.benchmarks.StubHttpServer;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registrations per second sustained by a Keycloak node through the three custom steps.
+ * <p>
+ * Brevo and reCAPTCHA are replaced by local stubs, Keycloak is started from a distribution
+ * with an in-memory database unless {@code --keycloak-url} points to a running server, ex :
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar fr.lva.keycloak.benchmarks.load.RegistrationLoadTest \
+ *     --keycloak-home=/opt/keycloak --provider-jar=target/keycloak-custom-registration-25.0.2.jar --users=32
+ * </pre>
+ */
+public class RegistrationLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = new LoadTestOptions(args);
+        try (StubHttpServer brevo = new StubHttpServer(8);
+             StubHttpServer recaptcha = new StubHttpServer(8)) {
+            URI brevoUrl = brevo.stub("/v3/smtp/email", 201, "{\"messageId\":\"<load-test@smtp-relay.mailin.fr>\"}");
+            URI recaptchaUrl = recaptcha.stub("/recaptcha/api/siteverify", 200, "{\"success\":true}");
+            List<String> serverOptions = List.of(
+                    "--spi-email-sender-default-brevo-url=" + brevoUrl,
+                    "--spi-email-sender-default-brevo-api-key=load-test",
+                    "--spi-captcha-verifier-recaptcha-url=" + recaptchaUrl
+            );
+
+            KeycloakServer server = null;
+            String url = options.keycloakUrl();
+            if (url == null) {
+                server = KeycloakServer.start(options, serverOptions);
+                url = server.getUrl();
+            } else {
+                System.out.println("Using running Keycloak, it must be started with : " + String.join(" ", serverOptions));
+            }
+            try {
+                new RealmSetup(url, options).create();
+                run(options, url, server, brevo);
+            } finally {
+                if (server != null) {
+                    server.close();
+                }
+            }
+        }
+    }
+
+    private static void run(LoadTestOptions options, String url, KeycloakServer server, StubHttpServer brevo)
+            throws Exception {
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        System.out.printf("Warming up with %d registrations%n", options.warmup());
+        execute(options, url, "warmup-" + runId, options.warmup(), new StepLatencies(options.warmup()));
+
+        StepLatencies latencies = new StepLatencies(options.registrations());
+        long sqlBefore = server != null ? server.getSqlStatements() : 0;
+        long emailsBefore = brevo.getRequests();
+        long start = System.nanoTime();
+        int registered = execute(options, url, runId, options.registrations(), latencies);
+        double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+
+        System.out.printf(Locale.ROOT, "%nRegistrations : %d/%d in %.1f s, %.1f registrations/s with %d users%n",
+                registered, options.registrations(), seconds, registered / seconds, options.users());
+        System.out.printf("%-15s %8s %10s %10s%n", "Step", "Count", "p50 (ms)", "p99 (ms)");
+        for (RegistrationClient.Step step : RegistrationClient.Step.values()) {
+            System.out.printf(Locale.ROOT, "%-15s %8d %10.1f %10.1f%n", step, latencies.count(step),
+                    latencies.percentile(step, 50), latencies.percentile(step, 99));
+        }
+        System.out.printf("Brevo requests : %d%n", brevo.getRequests() - emailsBefore);
+        if (server != null && options.countQueries() && registered > 0) {
+            System.out.printf(Locale.ROOT, "SQL statements per registration : %.1f%n",
+                    (server.getSqlStatements() - sqlBefore) / (double) registered);
+        }
+    }
+
+    /**
+     * @return number of successful registrations
+     */
+    private static int execute(LoadTestOptions options, String url, String prefix, int registrations, StepLatencies latencies)
+            throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger registered = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService users = Executors.newFixedThreadPool(options.users());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < options.users(); i++) {
+                futures.add(users.submit(() -> {
+                    RegistrationClient client = new RegistrationClient(url, options.realm(), latencies);
+                    int n;
+                    while ((n = next.getAndIncrement()) < registrations) {
+                        if (client.register(prefix + '-' + n + "@example.com", options.verifyEmail())) {
+                            registered.incrementAndGet();
+                        } else if (failed.incrementAndGet() == 1) {
+                            System.out.println("First registration failure : " + prefix + '-' + n + "@example.com");
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            users.shutdownNow();
+        }
+        return registered.get();
+    }
+}
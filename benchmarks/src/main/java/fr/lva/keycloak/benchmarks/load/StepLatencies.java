@@ -0,0 +1,52 @@
+package fr.lva.keycloak.benchmarks.load;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies of each registration step, all kept to compute exact percentiles
+ */
+public class StepLatencies {
+
+    private final Map<RegistrationClient.Step, long[]> values = new EnumMap<>(RegistrationClient.Step.class);
+    private final Map<RegistrationClient.Step, Integer> counts = new EnumMap<>(RegistrationClient.Step.class);
+
+    public StepLatencies(int expected) {
+        for (RegistrationClient.Step step : RegistrationClient.Step.values()) {
+            values.put(step, new long[expected]);
+            counts.put(step, 0);
+        }
+    }
+
+    public synchronized void record(RegistrationClient.Step step, long nanos) {
+        int count = counts.get(step);
+        long[] stepValues = values.get(step);
+        if (count == stepValues.length) {
+            stepValues = Arrays.copyOf(stepValues, count * 2 + 1);
+            values.put(step, stepValues);
+        }
+        stepValues[count] = nanos;
+        counts.put(step, count + 1);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return latency in milliseconds, 0 if the step was never reached
+     */
+    public synchronized double percentile(RegistrationClient.Step step, double percentile) {
+        int count = counts.get(step);
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(values.get(step), count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public synchronized int count(RegistrationClient.Step step) {
+        return counts.get(step);
+    }
+}
@@ -0,0 +1,140 @@
+package fr.lva.keycloak.benchmarks.registration;
+
+import fr.lva.keycloak.authentication.throttle.RegistrationThrottle;
+import fr.lva.keycloak.benchmarks.Stubs;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.keycloak.authentication.ValidationContext;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.policy.PasswordPolicyManagerProvider;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.userprofile.UserProfile;
+import org.keycloak.userprofile.UserProfileProvider;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fake registration request going through the three custom steps.
+ * <p>
+ * The Keycloak services are stubs answering instantly : the password policy accepts every password,
+ * the user profile is always valid and users are not stored. Only the code of the form actions and
+ * their use of the Keycloak API is measured.
+ */
+public class RegistrationFixture {
+
+    final LongAdder successes = new LongAdder();
+    final LongAdder validationErrors = new LongAdder();
+
+    private final RealmModel realm;
+    private final KeycloakSession session;
+    private final Map<String, String> authNotes = new HashMap<>();
+    private final AuthenticationSessionModel authSession;
+    private final ClientConnection connection;
+
+    public RegistrationFixture() {
+        Map<String, Integer> realmAttributes = Map.of(
+                // Counted but never reached, the scores include the throttle
+                RegistrationThrottle.REALM_MAX_PER_IP, Integer.MAX_VALUE,
+                RegistrationThrottle.REALM_MAX_PER_EMAIL, Integer.MAX_VALUE);
+        realm = Stubs.of(RealmModel.class, Map.of("getId", "realm-id", "getName", "test",
+                "getAttribute", (Stubs.Answer) args -> realmAttributes.get((String) args[0])));
+
+        UserModel user = Stubs.of(UserModel.class, Map.of(
+                "getId", "user-id",
+                "credentialManager", Stubs.of(SubjectCredentialManager.class, Map.of("updateCredential", true))));
+        UserProvider users = Stubs.of(UserProvider.class, Map.of(
+                // New email, the reset link is never built
+                "getUserByEmail", (Stubs.Answer) args -> null,
+                "addUser", user));
+        PasswordPolicyManagerProvider passwordPolicy = Stubs.of(PasswordPolicyManagerProvider.class, Map.of());
+        UserProfile profile = Stubs.of(UserProfile.class, Map.of());
+        UserProfileProvider profileProvider = Stubs.of(UserProfileProvider.class, Map.of("create", profile));
+        session = Stubs.of(KeycloakSession.class, Map.of(
+                "users", users,
+                "getProvider", (Stubs.Answer) args -> {
+                    if (args[0] == PasswordPolicyManagerProvider.class) {
+                        return passwordPolicy;
+                    }
+                    if (args[0] == UserProfileProvider.class) {
+                        return profileProvider;
+                    }
+                    return null;
+                }));
+
+        authSession = Stubs.of(AuthenticationSessionModel.class, Map.of(
+                "getAuthNote", (Stubs.Answer) args -> authNotes.get((String) args[0]),
+                "setAuthNote", (Stubs.Answer) args -> authNotes.put((String) args[0], (String) args[1])));
+        connection = Stubs.of(ClientConnection.class, Map.of("getRemoteAddr", "127.0.0.1"));
+    }
+
+    public static MultivaluedMap<String, String> credentials() {
+        MultivaluedMap<String, String> form = new MultivaluedHashMap<>();
+        form.putSingle("email", "jeanne.martin@example.com");
+        form.putSingle("email-confirm", "jeanne.martin@example.com");
+        form.putSingle("password", "Correct-Horse-Battery-9");
+        form.putSingle("password-confirm", "Correct-Horse-Battery-9");
+        return form;
+    }
+
+    public static MultivaluedMap<String, String> personalData() {
+        MultivaluedMap<String, String> form = new MultivaluedHashMap<>();
+        form.putSingle("civility", "Mme");
+        form.putSingle("lastName", "Martin");
+        form.putSingle("firstName", "Jeanne");
+        form.put("profile", List.of("Enseignant", "Directeur"));
+        return form;
+    }
+
+    public static MultivaluedMap<String, String> optins() {
+        MultivaluedMap<String, String> form = new MultivaluedHashMap<>();
+        form.putSingle("uai", "0751234A");
+        form.putSingle("newsletter", "on");
+        form.putSingle("cgu", "on");
+        return form;
+    }
+
+    /**
+     * Auth notes left by the first two steps, read by the last one
+     */
+    public void completePreviousSteps() {
+        authNotes.put("email", "jeanne.martin@example.com");
+        authNotes.put("password", "Correct-Horse-Battery-9");
+        authNotes.put("civility", "Mme");
+        authNotes.put("lastName", "Martin");
+        authNotes.put("firstName", "Jeanne");
+        authNotes.put("profile", "Enseignant,Directeur");
+    }
+
+    /**
+     * @param form submitted form, the form actions may modify it
+     */
+    public ValidationContext context(MultivaluedMap<String, String> form) {
+        HttpRequest request = Stubs.of(HttpRequest.class, Map.of("getDecodedFormParameters", form));
+        EventBuilder event = new EventBuilder(realm, session, connection);
+        return Stubs.of(ValidationContext.class, Map.of(
+                "getHttpRequest", request,
+                "getEvent", event,
+                "getRealm", realm,
+                "getSession", session,
+                "getAuthenticationSession", authSession,
+                "getConnection", connection,
+                "success", (Stubs.Answer) args -> {
+                    successes.increment();
+                    return null;
+                },
+                "validationError", (Stubs.Answer) args -> {
+                    validationErrors.increment();
+                    return null;
+                }));
+    }
+}
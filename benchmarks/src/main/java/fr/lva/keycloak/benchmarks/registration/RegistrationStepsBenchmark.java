@@ -0,0 +1,92 @@
+package fr.lva.keycloak.benchmarks.registration;
+
+import fr.lva.keycloak.authentication.forms.CustomCredentialsFormAction;
+import fr.lva.keycloak.authentication.forms.CustomOptinsFormAction;
+import fr.lva.keycloak.authentication.forms.CustomPersonalDataFormAction;
+import fr.lva.keycloak.benchmarks.Stubs;
+import org.keycloak.authentication.ValidationContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * validate and success of each registration step, on the happy path with reCAPTCHA disabled.
+ * <p>
+ * Sample time gives the latency distribution, run with {@code -prof gc} for the bytes allocated per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistrationStepsBenchmark {
+
+    private final CustomCredentialsFormAction credentials = new CustomCredentialsFormAction();
+    private final CustomPersonalDataFormAction personalData = new CustomPersonalDataFormAction();
+    private final CustomOptinsFormAction optins = new CustomOptinsFormAction();
+
+    private RegistrationFixture fixture;
+    private ValidationContext credentialsContext;
+    private ValidationContext personalDataContext;
+    private ValidationContext optinsContext;
+
+    @Setup
+    public void setUp() {
+        credentials.init(Stubs.config());
+        optins.init(Stubs.config());
+        fixture = new RegistrationFixture();
+        fixture.completePreviousSteps();
+        // The forms are only changed by the steps with the same values, they can be reused
+        credentialsContext = fixture.context(RegistrationFixture.credentials());
+        personalDataContext = fixture.context(RegistrationFixture.personalData());
+        optinsContext = fixture.context(RegistrationFixture.optins());
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (fixture.validationErrors.sum() > 0) {
+            throw new IllegalStateException(fixture.validationErrors.sum() + " validation error(s), the scores don't measure the happy path");
+        }
+    }
+
+    @Benchmark
+    public void credentialsValidate() {
+        credentials.validate(credentialsContext);
+    }
+
+    @Benchmark
+    public void credentialsSuccess() {
+        credentials.success(credentialsContext);
+    }
+
+    @Benchmark
+    public void personalDataValidate() {
+        personalData.validate(personalDataContext);
+    }
+
+    @Benchmark
+    public void personalDataSuccess() {
+        personalData.success(personalDataContext);
+    }
+
+    @Benchmark
+    public void optinsValidate() {
+        optins.validate(optinsContext);
+    }
+
+    @Benchmark
+    public void optinsSuccess() {
+        optins.success(optinsContext);
+    }
+}
@@ -0,0 +1,71 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.Map;
+
+/**
+ * reCAPTCHA settings of a registration flow, resolved once from the flow executions
+ */
+public final class CaptchaDescriptor {
+
+    public static final String RECAPTCHA_ACTION = "registration-recaptcha-action";
+    public static final CaptchaDescriptor NONE = new CaptchaDescriptor(false, null, null);
+
+    private final boolean required;
+    private final String siteKey;
+    private final String secretKey;
+
+    private CaptchaDescriptor(boolean required, String siteKey, String secretKey) {
+        this.required = required;
+        this.siteKey = siteKey;
+        this.secretKey = secretKey;
+    }
+
+    /**
+     * Look for a required reCAPTCHA execution in the flow
+     */
+    static CaptchaDescriptor resolve(RealmModel realm, String flowId) {
+        if (realm.getAuthenticationFlowById(flowId) == null) {
+            return NONE;
+        }
+        AuthenticationExecutionModel execution = realm.getAuthenticationExecutionsStream(flowId)
+                .filter(candidate -> RECAPTCHA_ACTION.equals(candidate.getAuthenticator())
+                        && candidate.getRequirement() == AuthenticationExecutionModel.Requirement.REQUIRED)
+                .findFirst()
+                .orElse(null);
+        if (execution == null) {
+            return NONE;
+        }
+        AuthenticatorConfigModel config = realm.getAuthenticatorConfigById(execution.getAuthenticatorConfig());
+        if (config == null || config.getConfig() == null) {
+            return NONE;
+        }
+        Map<String, String> captchaConfig = config.getConfig();
+        return new CaptchaDescriptor(true, captchaConfig.get("site.key"), captchaConfig.get("secret.key"));
+    }
+
+    /**
+     * @return true if the registration must be checked by reCAPTCHA
+     */
+    public boolean isRequired() {
+        return required;
+    }
+
+    /**
+     * @return true if the widget can be shown, the site key is set
+     */
+    public boolean isDisplayable() {
+        return required && siteKey != null && !siteKey.isEmpty();
+    }
+
+    public String getSiteKey() {
+        return siteKey;
+    }
+
+    public String getSecretKey() {
+        return secretKey;
+    }
+}
@@ -0,0 +1,107 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterListener;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * reCAPTCHA descriptors of the registration flows, by realm and flow id.
+ * <p>
+ * A realm is dropped when it is removed, and on every node when its flows are updated by the admin API
+ * in a realm with the {@code captcha-descriptors} event listener. Other changes, ex : a realm import,
+ * are picked up when the entries expire after a TTL.
+ */
+public class CaptchaDescriptorCache implements ProviderEventListener, ClusterListener {
+
+    private static final Logger LOG = Logger.getLogger(CaptchaDescriptorCache.class);
+    private static final String TASK_KEY = "captcha-descriptors";
+
+    private final long ttlNanos;
+    private final Map<String, Map<String, Entry>> realms = new ConcurrentHashMap<>();
+
+    public CaptchaDescriptorCache(long ttlSeconds) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    public static CaptchaDescriptorCache fromConfig(Config.Scope config) {
+        return new CaptchaDescriptorCache(config.getLong("captchaCacheTtl", 60L));
+    }
+
+    /**
+     * @param flowId id of the registration flow, from the {@code flow_id} auth note
+     */
+    public CaptchaDescriptor get(RealmModel realm, String flowId) {
+        if (flowId == null) {
+            return CaptchaDescriptor.NONE;
+        }
+        Map<String, Entry> flows = realms.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>());
+        Entry entry = flows.get(flowId);
+        long now = System.nanoTime();
+        if (entry != null && now - entry.expiresAt < 0) {
+            return entry.descriptor;
+        }
+        CaptchaDescriptor descriptor = CaptchaDescriptor.resolve(realm, flowId);
+        flows.put(flowId, new Entry(descriptor, now + ttlNanos));
+        return descriptor;
+    }
+
+    /**
+     * Forget the descriptors of a realm whose flows changed, on every node
+     */
+    public void invalidate(KeycloakSession session, String realmId) {
+        realms.remove(realmId);
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster == null) {
+            return;
+        }
+        try {
+            cluster.notify(TASK_KEY, new CaptchaDescriptorEvent(realmId), true, ClusterProvider.DCNotify.ALL_DCS);
+        } catch (RuntimeException e) {
+            LOG.warnf(e, "reCAPTCHA settings of realm %s not invalidated on the cluster, reloaded after the TTL", realmId);
+        }
+    }
+
+    @Override
+    public void eventReceived(ClusterEvent event) {
+        if (event instanceof CaptchaDescriptorEvent received) {
+            realms.remove(received.getRealmId());
+        }
+    }
+
+    @Override
+    public void onEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.RealmRemovedEvent removed) {
+            realms.remove(removed.getRealm().getId());
+        } else if (event instanceof PostMigrationEvent started) {
+            KeycloakModelUtils.runJobInTransaction(started.getFactory(), session -> {
+                ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+                if (cluster != null) {
+                    cluster.registerListener(TASK_KEY, this);
+                }
+            });
+        }
+    }
+
+    private static class Entry {
+
+        private final CaptchaDescriptor descriptor;
+        private final long expiresAt;
+
+        private Entry(CaptchaDescriptor descriptor, long expiresAt) {
+            this.descriptor = descriptor;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import org.keycloak.cluster.ClusterEvent;
+
+/**
+ * Flows of a realm updated on a node, its cached descriptors are dropped by the other nodes
+ */
+public class CaptchaDescriptorEvent implements ClusterEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String realmId;
+
+    public CaptchaDescriptorEvent(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+}
@@ -0,0 +1,57 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.Set;
+
+/**
+ * Drops the cached {@link CaptchaDescriptor} of a realm when its flows are updated by the admin API
+ */
+public class CaptchaDescriptorsEventListenerProvider implements EventListenerProvider {
+
+    private static final Set<ResourceType> FLOW_RESOURCES = Set.of(ResourceType.AUTH_FLOW, ResourceType.AUTH_EXECUTION_FLOW,
+            ResourceType.AUTH_EXECUTION, ResourceType.AUTHENTICATOR_CONFIG);
+
+    private final KeycloakSession session;
+    private final CaptchaDescriptorCache captchaDescriptors;
+
+    public CaptchaDescriptorsEventListenerProvider(KeycloakSession session, CaptchaDescriptorCache captchaDescriptors) {
+        this.session = session;
+        this.captchaDescriptors = captchaDescriptors;
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        // Only admin events
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        if (captchaDescriptors == null || event.getRealmId() == null || !FLOW_RESOURCES.contains(event.getResourceType())) {
+            return;
+        }
+        String realmId = event.getRealmId();
+        // Once committed, a registration running meanwhile would cache the previous flow again
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                captchaDescriptors.invalidate(session, realmId);
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                // Flow unchanged
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        // Nothing here
+    }
+}
@@ -0,0 +1,45 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import fr.lva.keycloak.authentication.forms.CustomOptinsFormAction;
+import org.keycloak.Config;
+import org.keycloak.authentication.FormAction;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
+
+public class CaptchaDescriptorsEventListenerProviderFactory implements EventListenerProviderFactory {
+
+    public static final String ID = "captcha-descriptors";
+
+    private CaptchaDescriptorCache captchaDescriptors;
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return new CaptchaDescriptorsEventListenerProvider(session, captchaDescriptors);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        // Nothing here
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        ProviderFactory<FormAction> formFactory = factory.getProviderFactory(FormAction.class, CustomOptinsFormAction.PROVIDER_ID);
+        if (formFactory instanceof CustomOptinsFormAction optinsForm) {
+            this.captchaDescriptors = optinsForm.getCaptchaDescriptors();
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing here
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,58 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.keycloak.authentication.FormContext;
+import org.keycloak.authentication.ValidationContext;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.Provider;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Captcha of the registration form : what the page shows and how the answer is checked
+ */
+public interface CaptchaVerifierProvider extends Provider {
+
+    /**
+     * Realm attribute naming the provider of a realm, the SPI default provider is used when it is not set
+     */
+    String REALM_ATTRIBUTE = "captchaVerifier";
+
+    /**
+     * @return provider of the realm, null if none is deployed
+     */
+    static CaptchaVerifierProvider of(KeycloakSession session, RealmModel realm) {
+        String providerId = realm.getAttribute(REALM_ATTRIBUTE);
+        CaptchaVerifierProvider provider = providerId == null || providerId.isEmpty()
+                ? null
+                : session.getProvider(CaptchaVerifierProvider.class, providerId);
+        return provider != null ? provider : session.getProvider(CaptchaVerifierProvider.class);
+    }
+
+    /**
+     * @param captcha reCAPTCHA settings of the registration flow
+     * @return true if the registration must be checked
+     */
+    boolean isRequired(RealmModel realm, CaptchaDescriptor captcha);
+
+    /**
+     * Set the attributes and scripts of the widget, only called when the captcha is required
+     */
+    void buildPage(FormContext context, LoginFormsProvider form, CaptchaDescriptor captcha);
+
+    /**
+     * Check the answer of the submitted form. The context is only read on the calling thread,
+     * the returned future may complete on another one.
+     *
+     * @return completed with false if the answer is missing or wrong
+     */
+    CompletableFuture<Boolean> verify(ValidationContext context, MultivaluedMap<String, String> formData,
+                                      CaptchaDescriptor captcha);
+
+    @Override
+    default void close() {
+        // Nothing to release by default
+    }
+}
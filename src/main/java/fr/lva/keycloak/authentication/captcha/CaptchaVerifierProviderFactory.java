@@ -0,0 +1,15 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import org.keycloak.provider.ProviderFactory;
+
+public interface CaptchaVerifierProviderFactory extends ProviderFactory<CaptchaVerifierProvider> {
+
+    /**
+     * Longest verification before it fails on its own timeouts, known once the factory is initialized
+     *
+     * @return 0 if the answer is checked locally
+     */
+    default long getMaxVerifyMillis() {
+        return 0;
+    }
+}
@@ -0,0 +1,33 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+/**
+ * Captcha checked by the optins step of the registration, ex : {@code --spi-captcha-verifier-provider=proof-of-work}
+ */
+public class CaptchaVerifierSpi implements Spi {
+
+    public static final String NAME = "captcha-verifier";
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return CaptchaVerifierProvider.class;
+    }
+
+    @Override
+    public Class<? extends ProviderFactory<CaptchaVerifierProvider>> getProviderFactoryClass() {
+        return CaptchaVerifierProviderFactory.class;
+    }
+}
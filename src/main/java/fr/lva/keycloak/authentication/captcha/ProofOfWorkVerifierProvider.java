@@ -0,0 +1,120 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.FormContext;
+import org.keycloak.authentication.ValidationContext;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.Urls;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Self-hosted proof of work : the browser looks for a nonce whose SHA-256 with the challenge starts with
+ * {@code difficulty} zero bits, checked here with a single hash.
+ * <p>
+ * The challenge is kept in the authentication session and used once. The difficulty is set per realm
+ * by the {@code captchaPowDifficulty} attribute, 0 disables the captcha.
+ */
+public class ProofOfWorkVerifierProvider implements CaptchaVerifierProvider {
+
+    private static final Logger LOG = Logger.getLogger(ProofOfWorkVerifierProvider.class);
+
+    public static final String RESPONSE_PARAM = "captcha-response";
+    public static final String REALM_DIFFICULTY = "captchaPowDifficulty";
+    static final String CHALLENGE_NOTE = "captcha.pow.challenge";
+    // Served from theme-resources/resources of the jar
+    private static final String SCRIPT = "js/pow-captcha.js";
+    private static final int MAX_NONCE_LENGTH = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int defaultDifficulty;
+    private final int maxDifficulty;
+
+    public ProofOfWorkVerifierProvider(int defaultDifficulty, int maxDifficulty) {
+        this.defaultDifficulty = defaultDifficulty;
+        this.maxDifficulty = maxDifficulty;
+    }
+
+    @Override
+    public boolean isRequired(RealmModel realm, CaptchaDescriptor captcha) {
+        return difficulty(realm) > 0;
+    }
+
+    @Override
+    public void buildPage(FormContext context, LoginFormsProvider form, CaptchaDescriptor captcha) {
+        int difficulty = difficulty(context.getRealm());
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String challenge = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        // A new challenge on each display, the previous one can't be replayed
+        context.getAuthenticationSession().setAuthNote(CHALLENGE_NOTE, difficulty + ":" + challenge);
+
+        form.setAttribute("captchaRequired", true);
+        form.setAttribute("powChallenge", challenge);
+        form.setAttribute("powDifficulty", difficulty);
+        try {
+            String themeName = context.getSession().theme().getTheme(Theme.Type.LOGIN).getName();
+            form.addScript(Urls.themeRoot(context.getUriInfo().getBaseUri()) + "/login/" + themeName + "/" + SCRIPT
+                    + "?challenge=" + challenge + "&difficulty=" + difficulty);
+        } catch (IOException e) {
+            LOG.warn("Login theme not found, the proof of work script is not added", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> verify(ValidationContext context, MultivaluedMap<String, String> formData,
+                                             CaptchaDescriptor captcha) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        String note = authSession.getAuthNote(CHALLENGE_NOTE);
+        authSession.removeAuthNote(CHALLENGE_NOTE);
+        return CompletableFuture.completedFuture(isSolved(note, formData.getFirst(RESPONSE_PARAM)));
+    }
+
+    private int difficulty(RealmModel realm) {
+        Integer difficulty = realm.getAttribute(REALM_DIFFICULTY, defaultDifficulty);
+        return Math.max(0, Math.min(difficulty == null ? defaultDifficulty : difficulty, maxDifficulty));
+    }
+
+    /**
+     * @param note difficulty and challenge, as set by {@link #buildPage}
+     */
+    static boolean isSolved(String note, String nonce) {
+        if (note == null || nonce == null || nonce.isEmpty() || nonce.length() > MAX_NONCE_LENGTH) {
+            return false;
+        }
+        int separator = note.indexOf(':');
+        int difficulty = Integer.parseInt(note.substring(0, separator));
+        String challenge = note.substring(separator + 1);
+        byte[] hash = sha256(challenge + ":" + nonce);
+        return leadingZeroBits(hash) >= difficulty;
+    }
+
+    private static int leadingZeroBits(byte[] hash) {
+        int bits = 0;
+        for (byte b : hash) {
+            if (b != 0) {
+                return bits + Integer.numberOfLeadingZeros(b & 0xff) - 24;
+            }
+            bits += 8;
+        }
+        return bits;
+    }
+
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class ProofOfWorkVerifierProviderFactory implements CaptchaVerifierProviderFactory {
+
+    public static final String PROVIDER_ID = "proof-of-work";
+
+    private ProofOfWorkVerifierProvider provider;
+
+    @Override
+    public CaptchaVerifierProvider create(KeycloakSession session) {
+        // Stateless, shared by the sessions
+        return provider;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        // About 65 000 hashes in the browser with 16, each added bit doubles it
+        this.provider = new ProofOfWorkVerifierProvider(
+                config.getInt("difficulty", 16),
+                config.getInt("maxDifficulty", 24));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Nothing here
+    }
+
+    @Override
+    public void close() {
+        // Nothing here
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
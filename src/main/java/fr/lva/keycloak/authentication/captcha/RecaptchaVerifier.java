@@ -0,0 +1,232 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.services.ServicesLogger;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * reCAPTCHA siteverify calls, shared by the registration requests.
+ * <p>
+ * Owns its connection pool with short timeouts, a slow Google doesn't hold the Keycloak pool.
+ * Tokens already sent to Google are kept for {@code tokenTtl} seconds : the same token from the
+ * authentication session that first sent it (double submit) gets the first answer, from any other
+ * session it is a replay and is rejected.
+ */
+public class RecaptchaVerifier implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(RecaptchaVerifier.class);
+    public static final String DEFAULT_URL = "https://www.google.com/recaptcha/api/siteverify";
+    private static final int DEFAULT_CONNECT_TIMEOUT = 1000;
+    private static final int DEFAULT_READ_TIMEOUT = 2000;
+
+    private final String url;
+    private final long tokenTtlNanos;
+    private final int maxTokens;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    // Runs the calls alongside the user profile validation
+    private final ExecutorService executor;
+    private final Map<String, Verification> tokens = new ConcurrentHashMap<>();
+
+    public RecaptchaVerifier(String url, int connectTimeoutMillis, int readTimeoutMillis, int maxConnections,
+                             int threads, long tokenTtlSeconds, int maxTokens) {
+        this.url = url;
+        this.tokenTtlNanos = TimeUnit.SECONDS.toNanos(tokenTtlSeconds);
+        this.maxTokens = maxTokens;
+
+        this.connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        connectionManager.setValidateAfterInactivity(2000);
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeoutMillis)
+                        .setConnectionRequestTimeout(connectTimeoutMillis)
+                        .setSocketTimeout(readTimeoutMillis)
+                        .build())
+                .disableCookieManagement()
+                .evictIdleConnections(30, TimeUnit.SECONDS)
+                .build();
+
+        AtomicInteger counter = new AtomicInteger();
+        // When all threads are busy the request thread calls reCAPTCHA itself
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 16),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "recaptcha-verify-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Build a verifier from the provider configuration, ex :
+     * {@code --spi-captcha-verifier-recaptcha-read-timeout=1500}
+     */
+    public static RecaptchaVerifier fromConfig(Config.Scope config) {
+        int threads = config.getInt("threads", 8);
+        return new RecaptchaVerifier(
+                // Overridable to point the load tests to a stub
+                config.get("url", DEFAULT_URL),
+                config.getInt("connectTimeout", DEFAULT_CONNECT_TIMEOUT),
+                config.getInt("readTimeout", DEFAULT_READ_TIMEOUT),
+                config.getInt("maxConnections", threads * 2),
+                threads,
+                // Google tokens are valid 2 minutes, no need to remember them longer
+                config.getLong("tokenTtl", 120L),
+                config.getInt("tokenCacheSize", 10000)
+        );
+    }
+
+    /**
+     * Longest call of a verifier built from the configuration : the connect timeout also bounds
+     * the wait for a pooled connection, then the read timeout
+     */
+    public static long maxDurationMillis(Config.Scope config) {
+        return 2L * config.getInt("connectTimeout", DEFAULT_CONNECT_TIMEOUT)
+                + config.getInt("readTimeout", DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Check a widget response, the call runs on the verifier threads.
+     *
+     * @param owner authentication session (and tab) submitting the token, the only one allowed to reuse it
+     * @return completed with false if the token is missing, replayed or refused by Google
+     */
+    public CompletableFuture<Boolean> verify(String secretKey, String token, String remoteAddr, String owner) {
+        if (token == null || token.isEmpty()) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        String key = digest(token);
+        long now = System.nanoTime();
+        Verification verification = new Verification(owner, now + tokenTtlNanos);
+        Verification previous = tokens.putIfAbsent(key, verification);
+        if (previous != null) {
+            if (now - previous.expiresAt < 0) {
+                if (owner == null || !owner.equals(previous.owner)) {
+                    LOG.warnf("reCAPTCHA token replayed from %s by another authentication session", remoteAddr);
+                    return CompletableFuture.completedFuture(false);
+                }
+                return previous.result;
+            }
+            tokens.put(key, verification);
+        }
+        if (tokens.size() > maxTokens) {
+            evictExpired(now);
+        }
+
+        CompletableFuture.supplyAsync(() -> post(secretKey, token, remoteAddr), executor)
+                .whenComplete((success, error) -> {
+                    if (error != null) {
+                        // Not answered, a new submit with the same token may try again
+                        tokens.remove(key, verification);
+                        ServicesLogger.LOGGER.recaptchaFailed(error instanceof Exception e ? e : new CompletionException(error));
+                        verification.result.complete(false);
+                    } else {
+                        verification.result.complete(success);
+                    }
+                });
+        return verification.result;
+    }
+
+    private boolean post(String secretKey, String token, String remoteAddr) {
+        HttpPost post = new HttpPost(url);
+        StringBuilder body = new StringBuilder(token.length() + 128)
+                .append("secret=").append(encode(secretKey))
+                .append("&response=").append(encode(token));
+        if (remoteAddr != null) {
+            body.append("&remoteip=").append(encode(remoteAddr));
+        }
+        post.setEntity(new StringEntity(body.toString(), ContentType.APPLICATION_FORM_URLENCODED));
+
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            try (InputStream content = response.getEntity().getContent()) {
+                JsonNode json = JsonSerialization.mapper.readTree(content);
+                return json.path("success").asBoolean(false);
+            } finally {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("reCAPTCHA verification failed", e);
+        }
+    }
+
+    private void evictExpired(long now) {
+        tokens.values().removeIf(entry -> now - entry.expiresAt >= 0);
+        if (tokens.size() > maxTokens) {
+            // Only fresh tokens, a flood : forget them rather than grow
+            LOG.warnf("More than %d reCAPTCHA tokens verified in the last %d s, cache cleared",
+                    maxTokens, TimeUnit.NANOSECONDS.toSeconds(tokenTtlNanos));
+            tokens.clear();
+        }
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value == null ? "" : value, StandardCharsets.UTF_8);
+    }
+
+    // Tokens are up to 2 KB, keep a digest
+    private static String digest(String token) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(sha256.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOG.debug("Error closing the reCAPTCHA client", e);
+        }
+        connectionManager.shutdown();
+    }
+
+    private static class Verification {
+
+        private final String owner;
+        private final long expiresAt;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private Verification(String owner, long expiresAt) {
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
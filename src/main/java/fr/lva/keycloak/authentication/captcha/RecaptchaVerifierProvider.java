@@ -0,0 +1,53 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.keycloak.authentication.FormContext;
+import org.keycloak.authentication.ValidationContext;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.models.RealmModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Google reCAPTCHA, configured by the reCAPTCHA execution of the registration flow
+ */
+public class RecaptchaVerifierProvider implements CaptchaVerifierProvider {
+
+    public static final String RESPONSE_PARAM = "g-recaptcha-response";
+
+    private final RecaptchaVerifier verifier;
+
+    public RecaptchaVerifierProvider(RecaptchaVerifier verifier) {
+        this.verifier = verifier;
+    }
+
+    @Override
+    public boolean isRequired(RealmModel realm, CaptchaDescriptor captcha) {
+        return captcha.isRequired();
+    }
+
+    @Override
+    public void buildPage(FormContext context, LoginFormsProvider form, CaptchaDescriptor captcha) {
+        if (!captcha.isDisplayable()) {
+            // reCAPTCHA not configured
+            return;
+        }
+        form.setAttribute("captchaRequired", true);
+        form.setAttribute("recaptchaRequired", true);
+        form.setAttribute("recaptchaSiteKey", captcha.getSiteKey());
+        String userLanguageTag = context.getSession().getContext()
+                .resolveLocale(context.getUser()).toLanguageTag();
+        form.addScript("https://www.google.com/recaptcha/api.js?hl=" + userLanguageTag);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> verify(ValidationContext context, MultivaluedMap<String, String> formData,
+                                             CaptchaDescriptor captcha) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        // A tab of a browser session, a double submit comes from the same one
+        String owner = authSession.getParentSession().getId() + "." + authSession.getTabId();
+        return verifier.verify(captcha.getSecretKey(), formData.getFirst(RESPONSE_PARAM),
+                context.getConnection().getRemoteAddr(), owner);
+    }
+}
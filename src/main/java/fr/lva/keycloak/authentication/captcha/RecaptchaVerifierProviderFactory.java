@@ -0,0 +1,54 @@
+package fr.lva.keycloak.authentication.captcha;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class RecaptchaVerifierProviderFactory implements CaptchaVerifierProviderFactory {
+
+    public static final String PROVIDER_ID = "recaptcha";
+
+    private Config.Scope config;
+    private long maxVerifyMillis;
+    // Shared by the registrations, created at postInit
+    private RecaptchaVerifier verifier;
+
+    @Override
+    public CaptchaVerifierProvider create(KeycloakSession session) {
+        return new RecaptchaVerifierProvider(verifier);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        this.config = config;
+        this.maxVerifyMillis = RecaptchaVerifier.maxDurationMillis(config);
+    }
+
+    @Override
+    public long getMaxVerifyMillis() {
+        return maxVerifyMillis;
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        this.verifier = RecaptchaVerifier.fromConfig(config);
+    }
+
+    @Override
+    public void close() {
+        if (verifier != null) {
+            verifier.close();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    // Default provider of the SPI
+    @Override
+    public int order() {
+        return 1;
+    }
+}
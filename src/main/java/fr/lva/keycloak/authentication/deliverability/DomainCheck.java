@@ -0,0 +1,48 @@
+package fr.lva.keycloak.authentication.deliverability;
+
+import fr.lva.keycloak.services.messages.Messages;
+
+/**
+ * Result of the check of an email domain
+ */
+public final class DomainCheck {
+
+    /**
+     * The domain receives email, or nothing is known before the deadline
+     */
+    public static final DomainCheck VALID = new DomainCheck(null, null);
+    public static final DomainCheck NO_MAIL_SERVER = new DomainCheck(Messages.EMAIL_DOMAIN_INVALID, null);
+
+    private final String message;
+    private final String suggestedEmail;
+
+    private DomainCheck(String message, String suggestedEmail) {
+        this.message = message;
+        this.suggestedEmail = suggestedEmail;
+    }
+
+    /**
+     * @param suggestedEmail the email with the domain it is a known typo of
+     */
+    public static DomainCheck typo(String suggestedEmail) {
+        return new DomainCheck(Messages.EMAIL_DOMAIN_TYPO, suggestedEmail);
+    }
+
+    public boolean isValid() {
+        return message == null;
+    }
+
+    /**
+     * @return message of the email field error, null if valid
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return parameter of the message, null if no typo was found
+     */
+    public String getSuggestedEmail() {
+        return suggestedEmail;
+    }
+}
@@ -0,0 +1,16 @@
+package fr.lva.keycloak.authentication.deliverability;
+
+import javax.naming.NamingException;
+
+/**
+ * DNS lookups of the email domains, replaceable by a stub in tests
+ */
+@FunctionalInterface
+public interface DomainResolver {
+
+    /**
+     * @return true if the domain has a mail server : MX records, or an address when it has no MX
+     * @throws NamingException if the DNS servers didn't answer, nothing is known about the domain
+     */
+    boolean acceptsMail(String domain) throws NamingException;
+}
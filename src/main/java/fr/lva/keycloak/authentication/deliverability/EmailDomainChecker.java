@@ -0,0 +1,138 @@
+package fr.lva.keycloak.authentication.deliverability;
+
+import fr.lva.keycloak.util.TtlLruCache;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+
+import javax.naming.NamingException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the domain of a registration email : known typos, then a mail server in the DNS.
+ * <p>
+ * DNS answers are cached and the lookups run on their own threads under a deadline. A domain not
+ * resolved in time, or whose DNS servers don't answer, is accepted : only a domain known to receive
+ * no email is refused.
+ */
+public class EmailDomainChecker {
+
+    private static final Logger LOG = Logger.getLogger(EmailDomainChecker.class);
+
+    // Frequent typos of the domains of our users, completed by the configuration
+    private static final String DEFAULT_TYPOS = "gmial.com=gmail.com,gmai.com=gmail.com,gmal.com=gmail.com,"
+            + "gnail.com=gmail.com,gamil.com=gmail.com,gmail.co=gmail.com,gmail.fr=gmail.com,"
+            + "hotmial.com=hotmail.com,hotmal.com=hotmail.com,hotmail.co=hotmail.com,"
+            + "hotmial.fr=hotmail.fr,hotmal.fr=hotmail.fr,yaho.fr=yahoo.fr,yahooo.fr=yahoo.fr,"
+            + "outlok.com=outlook.com,outlook.co=outlook.com,outlok.fr=outlook.fr,"
+            + "orange.fe=orange.fr,wanadoo.fe=wanadoo.fr,laposte.ne=laposte.net,free.fe=free.fr";
+
+    private final DomainResolver resolver;
+    private final Map<String, String> typos;
+    private final long timeoutMillis;
+    private final TtlLruCache<String, Boolean> domains;
+    private final ExecutorService executor;
+
+    public EmailDomainChecker(DomainResolver resolver, Map<String, String> typos, long timeoutMillis,
+                              int threads, int cacheSize, long cacheTtlSeconds) {
+        this.resolver = resolver;
+        this.typos = typos;
+        this.timeoutMillis = timeoutMillis;
+        this.domains = new TtlLruCache<>(cacheSize, cacheTtlSeconds);
+        AtomicInteger counter = new AtomicInteger();
+        // Lookups beyond the queue are not made, the domain is accepted
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 16),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "email-domain-check-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Build the checker from the form action configuration, ex :
+     * {@code --spi-form-action-custom-credentials-form-domain-check=true}
+     *
+     * @return null if the check is disabled
+     */
+    public static EmailDomainChecker fromConfig(Config.Scope config) {
+        if (!config.getBoolean("domainCheck", false)) {
+            return null;
+        }
+        long timeoutMillis = config.getLong("domainCheckTimeout", 500L);
+        return new EmailDomainChecker(
+                new JndiDomainResolver(config.get("dnsUrl", ""), (int) timeoutMillis, 1),
+                parseTypos(DEFAULT_TYPOS + "," + config.get("domainTypos", "")),
+                timeoutMillis,
+                config.getInt("domainCheckThreads", 4),
+                config.getInt("domainCacheSize", 10000),
+                config.getLong("domainCacheTtl", 3600L));
+    }
+
+    /**
+     * Start the check of a syntactically valid email, the returned future completes within the deadline
+     */
+    public CompletableFuture<DomainCheck> check(String email) {
+        int at = email.lastIndexOf('@');
+        String domain = normalize(email.substring(at + 1));
+        String suggestion = typos.get(domain);
+        if (suggestion != null) {
+            return CompletableFuture.completedFuture(DomainCheck.typo(email.substring(0, at + 1) + suggestion));
+        }
+        Boolean acceptsMail = domains.get(domain);
+        if (acceptsMail != null) {
+            return CompletableFuture.completedFuture(acceptsMail ? DomainCheck.VALID : DomainCheck.NO_MAIL_SERVER);
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> resolve(domain), executor)
+                    .completeOnTimeout(DomainCheck.VALID, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.debugf("Too many domain checks in progress, %s accepted", domain);
+            return CompletableFuture.completedFuture(DomainCheck.VALID);
+        }
+    }
+
+    private DomainCheck resolve(String domain) {
+        try {
+            boolean acceptsMail = resolver.acceptsMail(domain);
+            domains.put(domain, acceptsMail);
+            return acceptsMail ? DomainCheck.VALID : DomainCheck.NO_MAIL_SERVER;
+        } catch (NamingException | RuntimeException e) {
+            // Not cached, the next registration asks again
+            LOG.debugf(e, "Domain %s not resolved, accepted", domain);
+            return DomainCheck.VALID;
+        }
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static String normalize(String domain) {
+        String normalized = domain.trim().toLowerCase(Locale.ROOT);
+        return normalized.endsWith(".") ? normalized.substring(0, normalized.length() - 1) : normalized;
+    }
+
+    /**
+     * @param typos comma separated {@code typo=domain}
+     */
+    static Map<String, String> parseTypos(String typos) {
+        Map<String, String> parsed = new HashMap<>();
+        for (String typo : typos.split(",")) {
+            int separator = typo.indexOf('=');
+            if (separator > 0) {
+                parsed.put(normalize(typo.substring(0, separator)), typo.substring(separator + 1).trim());
+            }
+        }
+        return parsed;
+    }
+}
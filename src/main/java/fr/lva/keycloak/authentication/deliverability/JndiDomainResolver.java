@@ -0,0 +1,77 @@
+package fr.lva.keycloak.authentication.deliverability;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import java.util.Hashtable;
+
+/**
+ * Resolver of the JDK JNDI DNS provider
+ */
+public class JndiDomainResolver implements DomainResolver {
+
+    private final RecordLookup lookup;
+
+    /**
+     * @param dnsUrl        servers queried, ex : {@code dns://127.0.0.1:5353}, the system ones if blank
+     * @param timeoutMillis timeout of the first query, doubled on each retry
+     */
+    public JndiDomainResolver(String dnsUrl, int timeoutMillis, int retries) {
+        Hashtable<String, String> environment = new Hashtable<>();
+        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+        if (dnsUrl != null && !dnsUrl.isBlank()) {
+            environment.put(Context.PROVIDER_URL, dnsUrl);
+        }
+        environment.put("com.sun.jndi.dns.timeout.initial", String.valueOf(timeoutMillis));
+        environment.put("com.sun.jndi.dns.timeout.retries", String.valueOf(retries));
+        this.lookup = (name, types) -> {
+            // Contexts are not thread safe, and cheap compared to the query
+            DirContext context = new InitialDirContext(environment);
+            try {
+                return context.getAttributes(name, types);
+            } finally {
+                context.close();
+            }
+        };
+    }
+
+    JndiDomainResolver(RecordLookup lookup) {
+        this.lookup = lookup;
+    }
+
+    @Override
+    public boolean acceptsMail(String domain) throws NamingException {
+        // Absolute name, the search domains of the host are not tried
+        String name = domain + ".";
+        try {
+            // One type per query : several types are sent as an ANY query, which resolvers may answer
+            // with a single HINFO record (RFC 8482)
+            Attribute mx = lookup.getAttributes(name, new String[]{"MX"}).get("MX");
+            if (mx != null && mx.size() > 0) {
+                // "0 ." is a null MX, the domain declares it receives no email (RFC 7505)
+                return !(mx.size() == 1 && String.valueOf(mx.get()).trim().endsWith(" ."));
+            }
+            return hasRecord(name, "A") || hasRecord(name, "AAAA");
+        } catch (NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private boolean hasRecord(String name, String type) throws NamingException {
+        Attribute records = lookup.getAttributes(name, new String[]{type}).get(type);
+        return records != null && records.size() > 0;
+    }
+
+    /**
+     * DNS query, {@link DirContext#getAttributes(String, String[])} of a new context
+     */
+    @FunctionalInterface
+    interface RecordLookup {
+
+        Attributes getAttributes(String name, String[] types) throws NamingException;
+    }
+}
@@ -1,21 +1,29 @@
 package fr.lva.keycloak.authentication.forms;
 
+import fr.lva.keycloak.authentication.deliverability.DomainCheck;
+import fr.lva.keycloak.authentication.deliverability.EmailDomainChecker;
+import fr.lva.keycloak.authentication.registered.RegisteredEmails;
+import fr.lva.keycloak.authentication.registered.RegisteredEmailsEventListenerProviderFactory;
+import fr.lva.keycloak.authentication.throttle.RegistrationThrottle;
 import fr.lva.keycloak.services.messages.Messages;
 import jakarta.ws.rs.core.MultivaluedMap;
 import org.keycloak.Config;
 import org.keycloak.authentication.*;
 import org.keycloak.events.Details;
 import org.keycloak.events.Errors;
+import org.keycloak.events.EventListenerProvider;
 import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.*;
 import org.keycloak.models.utils.FormMessage;
 import org.keycloak.policy.PasswordPolicyManagerProvider;
 import org.keycloak.policy.PolicyError;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderFactory;
 import org.keycloak.services.validation.Validation;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.keycloak.services.messages.Messages.*;
 
@@ -23,6 +31,12 @@ public class CustomCredentialsFormAction implements FormAction, FormActionFactor
 
     public static final String PROVIDER_ID = "custom-credentials-form";
 
+    private RegistrationThrottle throttle;
+    // null if the registered-emails event listener is not deployed
+    private RegisteredEmails registeredEmails;
+    // null if the domain check is disabled
+    private EmailDomainChecker domainChecker;
+
     @Override
     public String getId() {
         return PROVIDER_ID;
@@ -72,31 +86,56 @@ public class CustomCredentialsFormAction implements FormAction, FormActionFactor
         String password = formData.getFirst("password");
         String passwordConfirm = formData.getFirst("password-confirm");
 
+        // ===== THROTTLING =====
+        // Before the user lookup and the password policy, bots flooding the form cost nothing more
+
+        RegistrationThrottle.Verdict verdict = throttle.check(context.getRealm(),
+                context.getConnection().getRemoteAddr(), email);
+        if (verdict != RegistrationThrottle.Verdict.ALLOWED) {
+            context.getEvent().detail(Details.EMAIL, email)
+                    .detail("throttled_by", verdict == RegistrationThrottle.Verdict.IP_LIMITED ? "ip" : "email");
+            context.error(RegistrationThrottle.ERROR);
+            formData.remove("password");
+            formData.remove("password-confirm");
+            List<FormMessage> throttled = new ArrayList<>();
+            throttled.add(new FormMessage(null, Messages.REGISTRATION_THROTTLED));
+            context.validationError(formData, throttled);
+            return;
+        }
+
         // ===== EMAIL VALIDATION =====
 
         if (Validation.isBlank(email)) {
             errors.add(new FormMessage("email", MISSING_EMAIL));
         } else {
             // Check email format
-            if (!Validation.isEmailValid(email)) {
+            boolean emailValid = Validation.isEmailValid(email);
+            if (!emailValid) {
                 errors.add(new FormMessage("email", INVALID_EMAIL));
             }
 
-            // Check email is free to use
-            UserModel existingUser = context.getSession().users()
-                    .getUserByEmail(context.getRealm(), email);
-            if (existingUser != null) {
-                // Build password reset URL
-                String resetUrl = context.getSession().getContext().getUri()
-                        .getBaseUriBuilder()
-                        .path("realms")
-                        .path(context.getRealm().getName())
-                        .path("login-actions")
-                        .path("reset-credentials")
-                        .build()
-                        .toString();
-                // Add frontend error with reset password link inside
-                errors.add(new FormMessage("email", EMAIL_EXISTS, resetUrl));
+            // Check email domain, the DNS lookup runs during the user lookup
+            CompletableFuture<DomainCheck> domainCheck = emailValid && domainChecker != null
+                    ? domainChecker.check(email)
+                    : null;
+
+            // Check email is free to use, the database is only queried when the filter may know it
+            UserModel existingUser = null;
+            if (registeredEmails == null || registeredEmails.mightBeRegistered(context.getRealm(), email)) {
+                existingUser = context.getSession().users()
+                        .getUserByEmail(context.getRealm(), email);
+                if (existingUser != null) {
+                    // Add frontend error with reset password link inside
+                    errors.add(new FormMessage("email", EMAIL_EXISTS, resetCredentialsUrl(context.getSession(), context.getRealm())));
+                }
+            }
+
+            if (domainCheck != null && existingUser == null) {
+                // Completes by the deadline
+                DomainCheck domain = domainCheck.join();
+                if (!domain.isValid()) {
+                    errors.add(new FormMessage("email", domain.getMessage(), domain.getSuggestedEmail()));
+                }
             }
         }
 
@@ -145,6 +184,20 @@ public class CustomCredentialsFormAction implements FormAction, FormActionFactor
 
     }
 
+    /**
+     * Password reset URL, shown with the {@code EMAIL_EXISTS} message
+     */
+    static String resetCredentialsUrl(KeycloakSession session, RealmModel realm) {
+        return session.getContext().getUri()
+                .getBaseUriBuilder()
+                .path("realms")
+                .path(realm.getName())
+                .path("login-actions")
+                .path("reset-credentials")
+                .build()
+                .toString();
+    }
+
     @Override
     public boolean configuredFor(KeycloakSession keycloakSession, RealmModel realmModel, UserModel userModel) {
         return false;
@@ -184,16 +237,23 @@ public class CustomCredentialsFormAction implements FormAction, FormActionFactor
 
     @Override
     public void init(Config.Scope scope) {
-        // Nothing here
+        this.throttle = RegistrationThrottle.fromConfig(scope);
+        this.domainChecker = EmailDomainChecker.fromConfig(scope);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
-        // Nothing here
+        ProviderFactory<EventListenerProvider> listenerFactory = keycloakSessionFactory
+                .getProviderFactory(EventListenerProvider.class, RegisteredEmailsEventListenerProviderFactory.ID);
+        if (listenerFactory instanceof RegisteredEmailsEventListenerProviderFactory registeredEmailsFactory) {
+            this.registeredEmails = registeredEmailsFactory.getRegisteredEmails();
+        }
     }
 
     @Override
     public void close() {
-        // Nothing here
+        if (domainChecker != null) {
+            domainChecker.close();
+        }
     }
 }
@@ -1,45 +1,53 @@
 package fr.lva.keycloak.authentication.forms;
 
+import fr.lva.keycloak.authentication.captcha.CaptchaDescriptor;
+import fr.lva.keycloak.authentication.captcha.CaptchaDescriptorCache;
+import fr.lva.keycloak.authentication.captcha.CaptchaVerifierProvider;
+import fr.lva.keycloak.authentication.captcha.CaptchaVerifierProviderFactory;
+import jakarta.ws.rs.core.MultivaluedHashMap;
 import jakarta.ws.rs.core.MultivaluedMap;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
+import jakarta.ws.rs.core.Response;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.authentication.AuthenticationFlowException;
 import org.keycloak.authentication.FormAction;
 import org.keycloak.authentication.FormActionFactory;
 import org.keycloak.authentication.FormContext;
 import org.keycloak.authentication.ValidationContext;
-import org.keycloak.connections.httpclient.HttpClientProvider;
+import org.keycloak.events.Details;
 import org.keycloak.events.Errors;
 import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.*;
 import org.keycloak.models.utils.FormMessage;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.services.ServicesLogger;
+import org.keycloak.services.messages.Messages;
 import org.keycloak.sessions.AuthenticationSessionModel;
 import org.keycloak.userprofile.UserProfile;
 import org.keycloak.userprofile.UserProfileContext;
 import org.keycloak.userprofile.UserProfileProvider;
 import org.keycloak.userprofile.ValidationException;
-import org.keycloak.util.JsonSerialization;
 
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 public class CustomOptinsFormAction implements FormAction, FormActionFactory {
 
     private static final Logger LOGGER = Logger.getLogger(CustomOptinsFormAction.class);
     public static final String PROVIDER_ID = "custom-optins-form";
+    // Queueing on the verifier threads and parsing of the answer
+    private static final long CAPTCHA_TIMEOUT_MARGIN_MILLIS = 500L;
+
+    private CaptchaDescriptorCache captchaDescriptors;
+    // null until postInit when not configured
+    private Long captchaTimeoutMillis;
 
     @Override
     public String getId() {
@@ -73,92 +81,35 @@ public class CustomOptinsFormAction implements FormAction, FormActionFactory {
     // Form Actions methods
     @Override
     public void buildPage(FormContext context, LoginFormsProvider form) {
-        // Search for reCAPTCHA execution in the authentication flow
-        AuthenticationFlowModel flow = context.getRealm().getAuthenticationFlowById(
-                context.getAuthenticationSession().getAuthNote("flow_id")
-        );
-
-        if (flow != null) {
-            List<AuthenticationExecutionModel> executions = context.getRealm()
-                    .getAuthenticationExecutionsStream(flow.getId())
-                    .collect(Collectors.toList());
+        // Set by the captcha provider when it is required and configured
+        form.setAttribute("captchaRequired", false);
+        form.setAttribute("recaptchaRequired", false);
 
-            for (AuthenticationExecutionModel execution : executions) {
-                if (execution.getAuthenticator() != null &&
-                        execution.getAuthenticator().equals("registration-recaptcha-action") &&
-                        execution.getRequirement() == AuthenticationExecutionModel.Requirement.REQUIRED) {
-
-                    // reCAPTCHA is configured in the flow
-                    AuthenticatorConfigModel config = context.getRealm()
-                            .getAuthenticatorConfigById(execution.getAuthenticatorConfig());
-
-                    if (config != null && config.getConfig() != null) {
-                        Map<String, String> captchaConfig = config.getConfig();
-                        String siteKey = captchaConfig.get("site.key");
-
-                        if (siteKey != null && !siteKey.isEmpty()) {
-                            form.setAttribute("recaptchaRequired", true);
-                            form.setAttribute("recaptchaSiteKey", siteKey);
-                            String userLanguageTag = context.getSession().getContext()
-                                    .resolveLocale(context.getUser()).toLanguageTag();
-                            form.addScript("https://www.google.com/recaptcha/api.js?hl=" + userLanguageTag);
-                            return;
-                        }
-                    }
-                }
-            }
+        CaptchaVerifierProvider captchaVerifier = CaptchaVerifierProvider.of(context.getSession(), context.getRealm());
+        CaptchaDescriptor captcha = captchaDescriptors.get(context.getRealm(),
+                context.getAuthenticationSession().getAuthNote("flow_id"));
+        if (captchaVerifier != null && captchaVerifier.isRequired(context.getRealm(), captcha)) {
+            captchaVerifier.buildPage(context, form, captcha);
         }
-
-        // reCAPTCHA not found or not configured
-        form.setAttribute("recaptchaRequired", false);
     }
 
     @Override
     public void validate(ValidationContext context) {
         MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
-        List<FormMessage> errors = new ArrayList<>();
 
-        // ===== reCAPTCHA VALIDATION =====
-        // Check if reCAPTCHA is configured in the flow
-        AuthenticationFlowModel flow = context.getRealm().getAuthenticationFlowById(
-                context.getAuthenticationSession().getAuthNote("flow_id")
-        );
-
-        if (flow != null) {
-            List<AuthenticationExecutionModel> executions = context.getRealm()
-                    .getAuthenticationExecutionsStream(flow.getId())
-                    .collect(Collectors.toList());
-
-            for (AuthenticationExecutionModel execution : executions) {
-                if (execution.getAuthenticator() != null &&
-                        execution.getAuthenticator().equals("registration-recaptcha-action") &&
-                        execution.getRequirement() == AuthenticationExecutionModel.Requirement.REQUIRED) {
-
-                    // reCAPTCHA is required, validate it
-                    AuthenticatorConfigModel config = context.getRealm()
-                            .getAuthenticatorConfigById(execution.getAuthenticatorConfig());
-
-                    if (config != null && config.getConfig() != null) {
-                        String secretKey = config.getConfig().get("secret.key");
-                        String captchaResponse = formData.getFirst("g-recaptcha-response");
-
-                        if (!validateRecaptcha(context, captchaResponse, secretKey)) {
-                            errors.add(new FormMessage(null, "recaptchaFailed"));
-                        }
-                    }
-                    break;
-                }
-            }
-        }
-
-        // If reCAPTCHA validation failed, return early
-        if (!errors.isEmpty()) {
-            context.error(Errors.INVALID_REGISTRATION);
-            context.validationError(formData, errors);
-            return;
+        // ===== CAPTCHA VALIDATION =====
+        // Started first, a remote check runs while the user profile is validated
+        CaptchaVerifierProvider captchaVerifier = CaptchaVerifierProvider.of(context.getSession(), context.getRealm());
+        CaptchaDescriptor captcha = captchaDescriptors.get(context.getRealm(),
+                context.getAuthenticationSession().getAuthNote("flow_id"));
+        CompletableFuture<Boolean> captchaResult = null;
+        if (captchaVerifier != null && captchaVerifier.isRequired(context.getRealm(), captcha)) {
+            captchaResult = captchaVerifier.verify(context, formData, captcha);
         }
 
         // ===== RESTORE DATA FROM PREVIOUS STEPS =====
+        // On a copy, a failed captcha shows the form as submitted
+        MultivaluedMap<String, String> profileData = new MultivaluedHashMap<>(formData);
         AuthenticationSessionModel authSession = context.getAuthenticationSession();
         String email = authSession.getAuthNote("email");
         String civility = authSession.getAuthNote("civility");
@@ -167,31 +118,45 @@ public class CustomOptinsFormAction implements FormAction, FormActionFactory {
         String profilesCsv = authSession.getAuthNote("profile");
 
         if (email != null && !email.isEmpty()) {
-            formData.putSingle("email", email);
-            formData.putSingle("username", email);
+            profileData.putSingle("email", email);
+            profileData.putSingle("username", email);
         }
-        if (civility != null) formData.putSingle("civility", civility);
-        if (lastName != null) formData.putSingle("lastName", lastName);
-        if (firstName != null) formData.putSingle("firstName", firstName);
+        if (civility != null) profileData.putSingle("civility", civility);
+        if (lastName != null) profileData.putSingle("lastName", lastName);
+        if (firstName != null) profileData.putSingle("firstName", firstName);
         if (profilesCsv != null && !profilesCsv.isEmpty()) {
             List<String> profiles = Arrays.asList(profilesCsv.split(","));
-            formData.put("profile", profiles);
+            profileData.put("profile", profiles);
         }
 
         // ===== USER PROFILE VALIDATION =====
         UserProfileProvider profileProvider = context.getSession().getProvider(UserProfileProvider.class);
-        UserProfile profile = profileProvider.create(UserProfileContext.REGISTRATION, formData);
+        UserProfile profile = profileProvider.create(UserProfileContext.REGISTRATION, profileData);
 
+        List<FormMessage> validationErrors = null;
         try {
             profile.validate();
-            context.success();
         } catch (ValidationException e) {
-            List<FormMessage> validationErrors = e.getErrors().stream()
+            validationErrors = e.getErrors().stream()
                     .map(error -> new FormMessage(error.getAttribute(), error.getMessage(),
                             error.getMessageParameters()))
                     .collect(Collectors.toList());
+        }
+
+        // A failed captcha is reported alone, as if checked first
+        if (captchaResult != null && !awaitCaptcha(captchaResult)) {
+            List<FormMessage> errors = new ArrayList<>();
+            errors.add(new FormMessage(null, "recaptchaFailed"));
             context.error(Errors.INVALID_REGISTRATION);
-            context.validationError(formData, validationErrors);
+            context.validationError(formData, errors);
+            return;
+        }
+
+        if (validationErrors == null) {
+            context.success();
+        } else {
+            context.error(Errors.INVALID_REGISTRATION);
+            context.validationError(profileData, validationErrors);
         }
     }
 
@@ -225,9 +190,19 @@ public class CustomOptinsFormAction implements FormAction, FormActionFactory {
 
         // ===== SAVE USER =====
 
-        UserModel user = session.users().addUser(realm, email);
+        UserModel user = addUser(session, realm, email);
+        if (user == null) {
+            // Registered meanwhile by another request, ex : on another node since the credentials step
+            session.getTransactionManager().setRollbackOnly();
+            // The flow sends the error event
+            context.getEvent().detail(Details.EMAIL, email);
+            Response emailExists = session.getProvider(LoginFormsProvider.class)
+                    .setAuthenticationSession(authSession)
+                    .setError(Messages.EMAIL_EXISTS, CustomCredentialsFormAction.resetCredentialsUrl(session, realm))
+                    .createErrorPage(Response.Status.CONFLICT);
+            throw new AuthenticationFlowException(AuthenticationFlowError.USER_CONFLICT, emailExists);
+        }
         user.setEnabled(true);
-        user.setEmail(email);
         user.setEmailVerified(false);
         user.setFirstName(firstName);
         user.setLastName(lastName);
@@ -253,38 +228,42 @@ public class CustomOptinsFormAction implements FormAction, FormActionFactory {
         context.setUser(user);
 
         // ===== LOGS & EVENTS =====
-        context.getEvent().user(user);
+        // The email is read by the registered-emails event listener
+        context.getEvent().user(user).detail(Details.EMAIL, email);
         context.getEvent().success();
     }
 
-    // Helper method to validate reCAPTCHA
-    private boolean validateRecaptcha(ValidationContext context, String captchaResponse, String secretKey) {
-        if (captchaResponse == null || captchaResponse.isEmpty()) {
-            return false;
+    /**
+     * User named after its email
+     *
+     * @return null if the email is already the username or the email of another user
+     */
+    static UserModel addUser(KeycloakSession session, RealmModel realm, String email) {
+        // setEmail isn't flushed before the commit, an email taken by another username is only caught here
+        if (!realm.isDuplicateEmailsAllowed() && session.users().getUserByEmail(realm, email) != null) {
+            return null;
         }
+        try {
+            UserModel user = session.users().addUser(realm, email);
+            user.setEmail(email);
+            return user;
+        } catch (ModelDuplicateException e) {
+            return null;
+        }
+    }
 
-        CloseableHttpClient httpClient = context.getSession()
-                .getProvider(HttpClientProvider.class).getHttpClient();
-        HttpPost post = new HttpPost("https://www.google.com/recaptcha/api/siteverify");
-
-        List<NameValuePair> formparams = new LinkedList<>();
-        formparams.add(new BasicNameValuePair("secret", secretKey));
-        formparams.add(new BasicNameValuePair("response", captchaResponse));
-        formparams.add(new BasicNameValuePair("remoteip", context.getConnection().getRemoteAddr()));
-
+    /**
+     * @return false if the captcha isn't checked before the deadline, a remote call itself ends with its read timeout
+     */
+    private boolean awaitCaptcha(CompletableFuture<Boolean> captchaResult) {
         try {
-            UrlEncodedFormEntity form = new UrlEncodedFormEntity(formparams, "UTF-8");
-            post.setEntity(form);
-            try (CloseableHttpResponse response = httpClient.execute(post)) {
-                InputStream content = response.getEntity().getContent();
-                try {
-                    Map json = JsonSerialization.readValue(content, Map.class);
-                    return Boolean.TRUE.equals(json.get("success"));
-                } finally {
-                    EntityUtils.consumeQuietly(response.getEntity());
-                }
-            }
-        } catch (Exception e) {
+            return captchaResult.get(captchaTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Not cancelled, a double submit may be waiting on the same answer
+            LOGGER.warnf("Captcha verification took more than %d ms, registration rejected", captchaTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
             ServicesLogger.LOGGER.recaptchaFailed(e);
         }
         return false;
@@ -329,16 +308,33 @@ public class CustomOptinsFormAction implements FormAction, FormActionFactory {
 
     @Override
     public void init(Config.Scope scope) {
-        // Nothing here
+        this.captchaDescriptors = CaptchaDescriptorCache.fromConfig(scope);
+        this.captchaTimeoutMillis = scope.getLong("captchaTimeout");
     }
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
-        // Nothing here
+        keycloakSessionFactory.register(captchaDescriptors);
+        if (captchaTimeoutMillis == null) {
+            // Wait for the slowest deployed verifier to fail on its own, a timed out call would reject a valid registration
+            long maxVerifyMillis = keycloakSessionFactory.getProviderFactoriesStream(CaptchaVerifierProvider.class)
+                    .filter(CaptchaVerifierProviderFactory.class::isInstance)
+                    .mapToLong(factory -> ((CaptchaVerifierProviderFactory) factory).getMaxVerifyMillis())
+                    .max()
+                    .orElse(0L);
+            this.captchaTimeoutMillis = maxVerifyMillis + CAPTCHA_TIMEOUT_MARGIN_MILLIS;
+        }
     }
 
     @Override
     public void close() {
         // Nothing here
     }
+
+    /**
+     * Shared descriptors, also invalidated by the {@code captcha-descriptors} event listener
+     */
+    public CaptchaDescriptorCache getCaptchaDescriptors() {
+        return captchaDescriptors;
+    }
 }
@@ -0,0 +1,27 @@
+package fr.lva.keycloak.authentication.registered;
+
+import org.keycloak.cluster.ClusterEvent;
+
+/**
+ * Email added on a node, or filter invalidated when the email is null, sent to the other nodes
+ */
+public class RegisteredEmailEvent implements ClusterEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String realmId;
+    private final String email;
+
+    public RegisteredEmailEvent(String realmId, String email) {
+        this.realmId = realmId;
+        this.email = email;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+}
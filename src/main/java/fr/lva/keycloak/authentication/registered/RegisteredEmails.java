@@ -0,0 +1,235 @@
+package fr.lva.keycloak.authentication.registered;
+
+import jakarta.persistence.EntityManager;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterListener;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+import org.keycloak.storage.UserStorageProvider;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Emails of the users, by realm, in Bloom filters : an email the filter doesn't contain is not registered
+ * and the database doesn't have to be queried.
+ * <p>
+ * Only used in realms with the {@code registered-emails} event listener enabled, which adds the emails
+ * of the new users, and without user federation, whose users are not in the database. Filters are built
+ * from the database in the background, at startup then every {@code rebuildInterval} seconds, the
+ * database is queried until the first one is ready.
+ * <p>
+ * Each node has its own filters, the emails added and the filters invalidated on one node are sent to
+ * the others through the {@link ClusterProvider}.
+ */
+public class RegisteredEmails implements ProviderEventListener, ClusterListener {
+
+    private static final Logger LOG = Logger.getLogger(RegisteredEmails.class);
+    private static final String TASK_KEY = "registered-emails";
+    // Room for the users registered until the next build
+    private static final long MIN_CAPACITY = 10_000;
+
+    private final double falsePositiveRate;
+    private final long rebuildIntervalNanos;
+    private final Map<String, RealmEmails> realms = new ConcurrentHashMap<>();
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "registered-emails-builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private KeycloakSessionFactory sessionFactory;
+
+    public RegisteredEmails(double falsePositiveRate, long rebuildIntervalSeconds) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.rebuildIntervalNanos = TimeUnit.SECONDS.toNanos(rebuildIntervalSeconds);
+    }
+
+    public static RegisteredEmails fromConfig(Config.Scope config) {
+        return new RegisteredEmails(
+                Double.parseDouble(config.get("falsePositiveRate", "0.01")),
+                config.getLong("rebuildInterval", 3600L));
+    }
+
+    /**
+     * Build the filters of the realms using them, in the background
+     */
+    public void start(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+        builder.execute(() -> {
+            try {
+                // Before the filters are read, an email added meanwhile is either read or received
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+                    if (cluster != null) {
+                        cluster.registerListener(TASK_KEY, this);
+                    }
+                });
+                List<String> realmIds = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                        session -> session.realms().getRealmsStream()
+                                .filter(RegisteredEmails::isEnabled)
+                                .map(RealmModel::getId)
+                                .toList());
+                realmIds.forEach(realmId -> rebuild(realmId, realms.computeIfAbsent(realmId, id -> new RealmEmails())));
+            } catch (RuntimeException e) {
+                LOG.warn("Registered emails not loaded at startup, they are loaded on the first registration", e);
+            }
+        });
+    }
+
+    /**
+     * @return false if no user of the realm has this email, true if one may have it
+     */
+    public boolean mightBeRegistered(RealmModel realm, String email) {
+        if (!isEnabled(realm)) {
+            return true;
+        }
+        RealmEmails emails = realms.computeIfAbsent(realm.getId(), id -> new RealmEmails());
+        BloomFilter filter = emails.ready;
+        if (filter == null || filter.isSaturated() || System.nanoTime() - emails.builtAt > rebuildIntervalNanos) {
+            scheduleRebuild(realm.getId(), emails);
+        }
+        return filter == null || filter.mightContain(KeycloakModelUtils.toLowerCaseSafe(email));
+    }
+
+    /**
+     * Add the email of a new or updated user, on every node
+     */
+    public void add(KeycloakSession session, String realmId, String email) {
+        if (email == null) {
+            return;
+        }
+        addLocal(realmId, email);
+        notifyCluster(session, new RegisteredEmailEvent(realmId, email));
+    }
+
+    /**
+     * Forget the filter of a realm whose users changed without their emails being known, ex : an import, on every node
+     */
+    public void invalidate(KeycloakSession session, String realmId) {
+        invalidateLocal(realmId);
+        notifyCluster(session, new RegisteredEmailEvent(realmId, null));
+    }
+
+    @Override
+    public void eventReceived(ClusterEvent event) {
+        if (event instanceof RegisteredEmailEvent received) {
+            if (received.getEmail() == null) {
+                invalidateLocal(received.getRealmId());
+            } else {
+                addLocal(received.getRealmId(), received.getEmail());
+            }
+        }
+    }
+
+    private void notifyCluster(KeycloakSession session, RegisteredEmailEvent event) {
+        ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+        if (cluster == null) {
+            return;
+        }
+        try {
+            cluster.notify(TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS);
+        } catch (RuntimeException e) {
+            // The other nodes learn the email at their next rebuild, the user creation rejects a duplicate meanwhile
+            LOG.warnf(e, "Registered email of realm %s not sent to the cluster", event.getRealmId());
+        }
+    }
+
+    private void addLocal(String realmId, String email) {
+        RealmEmails emails = realms.get(realmId);
+        if (emails == null || email == null) {
+            // No filter yet, it will be read from the database
+            return;
+        }
+        String normalized = KeycloakModelUtils.toLowerCaseSafe(email);
+        // Also in the filter being built, its query may have run before the user was saved
+        BloomFilter building = emails.building;
+        if (building != null) {
+            building.add(normalized);
+        }
+        BloomFilter ready = emails.ready;
+        if (ready != null) {
+            ready.add(normalized);
+        }
+    }
+
+    private void invalidateLocal(String realmId) {
+        realms.remove(realmId);
+    }
+
+    @Override
+    public void onEvent(ProviderEvent event) {
+        if (event instanceof RealmModel.RealmRemovedEvent removed) {
+            realms.remove(removed.getRealm().getId());
+        }
+    }
+
+    public void close() {
+        builder.shutdownNow();
+    }
+
+    private static boolean isEnabled(RealmModel realm) {
+        return realm.getEventsListenersStream().anyMatch(RegisteredEmailsEventListenerProviderFactory.ID::equals)
+                && realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()).findAny().isEmpty();
+    }
+
+    private void scheduleRebuild(String realmId, RealmEmails emails) {
+        if (sessionFactory != null && emails.rebuilding.compareAndSet(false, true)) {
+            builder.execute(() -> rebuild(realmId, emails));
+        }
+    }
+
+    private void rebuild(String realmId, RealmEmails emails) {
+        emails.rebuilding.set(true);
+        long start = System.nanoTime();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+                long users = em.createQuery("select count(u) from UserEntity u where u.realmId = :realmId", Long.class)
+                        .setParameter("realmId", realmId)
+                        .getSingleResult();
+                BloomFilter filter = BloomFilter.create(Math.max(MIN_CAPACITY, users * 2), falsePositiveRate);
+                emails.building = filter;
+                // Only the emails are read, in batches
+                try (Stream<String> stored = em.createQuery(
+                                "select u.email from UserEntity u where u.realmId = :realmId and u.email is not null", String.class)
+                        .setParameter("realmId", realmId)
+                        .setHint("org.hibernate.fetchSize", 1000)
+                        .setHint("org.hibernate.readOnly", true)
+                        .getResultStream()) {
+                    stored.forEach(filter::add);
+                }
+                emails.ready = filter;
+                emails.builtAt = System.nanoTime();
+                LOG.debugf("Registered emails of realm %s loaded, %d users in %d ms", realmId, users,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            });
+        } catch (RuntimeException e) {
+            LOG.warnf(e, "Registered emails of realm %s not loaded, the database is queried", realmId);
+        } finally {
+            emails.building = null;
+            emails.rebuilding.set(false);
+        }
+    }
+
+    private static class RealmEmails {
+
+        private volatile BloomFilter ready;
+        private volatile BloomFilter building;
+        private volatile long builtAt;
+        private final AtomicBoolean rebuilding = new AtomicBoolean();
+    }
+}
@@ -0,0 +1,79 @@
+package fr.lva.keycloak.authentication.registered;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.events.Details;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Adds the emails of the new users and of the updated emails to {@link RegisteredEmails}
+ */
+public class RegisteredEmailsEventListenerProvider implements EventListenerProvider {
+
+    private static final Set<EventType> USER_EVENTS = Set.of(EventType.REGISTER, EventType.UPDATE_EMAIL, EventType.UPDATE_PROFILE);
+
+    private final KeycloakSession session;
+    private final RegisteredEmails registeredEmails;
+
+    public RegisteredEmailsEventListenerProvider(KeycloakSession session, RegisteredEmails registeredEmails) {
+        this.session = session;
+        this.registeredEmails = registeredEmails;
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        Map<String, String> details = event.getDetails();
+        if (!USER_EVENTS.contains(event.getType()) || event.getRealmId() == null || details == null) {
+            return;
+        }
+        registeredEmails.add(session, event.getRealmId(), details.get(Details.EMAIL));
+        registeredEmails.add(session, event.getRealmId(), details.get(Details.UPDATED_EMAIL));
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        if (event.getResourceType() == ResourceType.REALM && event.getResourcePath() != null
+                && event.getResourcePath().endsWith("partialImport")) {
+            registeredEmails.invalidate(session, event.getRealmId());
+            return;
+        }
+        if (event.getResourceType() != ResourceType.USER
+                || (event.getOperationType() != OperationType.CREATE && event.getOperationType() != OperationType.UPDATE)) {
+            return;
+        }
+        String email = email(event.getRepresentation());
+        if (email != null) {
+            registeredEmails.add(session, event.getRealmId(), email);
+        } else {
+            // Representations not included in the admin events, the new email is unknown
+            registeredEmails.invalidate(session, event.getRealmId());
+        }
+    }
+
+    private static String email(String representation) {
+        if (representation == null) {
+            return null;
+        }
+        try {
+            JsonNode email = JsonSerialization.mapper.readTree(representation).get("email");
+            return email != null && email.isTextual() ? email.asText() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing here
+    }
+}
@@ -0,0 +1,49 @@
+package fr.lva.keycloak.authentication.registered;
+
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class RegisteredEmailsEventListenerProviderFactory implements EventListenerProviderFactory {
+
+    public static final String ID = "registered-emails";
+
+    private RegisteredEmails registeredEmails;
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return new RegisteredEmailsEventListenerProvider(session, registeredEmails);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        this.registeredEmails = RegisteredEmails.fromConfig(config);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        factory.register(registeredEmails);
+        registeredEmails.start(factory);
+    }
+
+    @Override
+    public void close() {
+        if (registeredEmails != null) {
+            registeredEmails.close();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    /**
+     * Shared filters, also used by the registration form
+     */
+    public RegisteredEmails getRegisteredEmails() {
+        return registeredEmails;
+    }
+}
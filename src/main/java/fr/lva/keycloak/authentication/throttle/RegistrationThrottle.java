@@ -0,0 +1,85 @@
+package fr.lva.keycloak.authentication.throttle;
+
+import org.keycloak.Config;
+import org.keycloak.models.RealmModel;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the registration submits by client address and by email, checked before any database access.
+ * <p>
+ * Limits are per window and per realm, from the {@code registrationMaxPerIp} and
+ * {@code registrationMaxPerEmail} realm attributes, or the configuration when they are not set.
+ * 0 disables a limit.
+ */
+public class RegistrationThrottle {
+
+    /**
+     * Error of the registration event when a submit is refused
+     */
+    public static final String ERROR = "registration_throttled";
+    public static final String REALM_MAX_PER_IP = "registrationMaxPerIp";
+    public static final String REALM_MAX_PER_EMAIL = "registrationMaxPerEmail";
+
+    public enum Verdict {
+        ALLOWED,
+        IP_LIMITED,
+        EMAIL_LIMITED
+    }
+
+    private final int defaultMaxPerIp;
+    private final int defaultMaxPerEmail;
+    private final SlidingWindowCounter byIp;
+    private final SlidingWindowCounter byEmail;
+
+    public RegistrationThrottle(long windowSeconds, int cells, int defaultMaxPerIp, int defaultMaxPerEmail) {
+        this.defaultMaxPerIp = defaultMaxPerIp;
+        this.defaultMaxPerEmail = defaultMaxPerEmail;
+        this.byIp = new SlidingWindowCounter(TimeUnit.SECONDS.toNanos(windowSeconds), cells);
+        this.byEmail = new SlidingWindowCounter(TimeUnit.SECONDS.toNanos(windowSeconds), cells);
+    }
+
+    /**
+     * Build the throttle from the form action configuration, ex :
+     * {@code --spi-form-action-custom-credentials-form-throttle-max-per-ip=30}
+     */
+    public static RegistrationThrottle fromConfig(Config.Scope config) {
+        return new RegistrationThrottle(
+                config.getLong("throttleWindow", 60L),
+                // 8 bytes per cell and two rows, 1 MB per counter
+                config.getInt("throttleCells", 65536),
+                // Disabled by default, clients behind a shared address would be refused together
+                config.getInt("throttleMaxPerIp", 0),
+                config.getInt("throttleMaxPerEmail", 5));
+    }
+
+    /**
+     * Count a submit and check it against the limits of the realm
+     *
+     * @param email submitted email, may be blank
+     */
+    public Verdict check(RealmModel realm, String remoteAddr, String email) {
+        int maxPerIp = limit(realm, REALM_MAX_PER_IP, defaultMaxPerIp);
+        if (maxPerIp > 0 && remoteAddr != null
+                && byIp.increment(realm.getId() + '|' + remoteAddr) > maxPerIp) {
+            return Verdict.IP_LIMITED;
+        }
+        int maxPerEmail = limit(realm, REALM_MAX_PER_EMAIL, defaultMaxPerEmail);
+        if (maxPerEmail > 0 && email != null && !email.isBlank()
+                && byEmail.increment(realm.getId() + '|' + normalize(email)) > maxPerEmail) {
+            return Verdict.EMAIL_LIMITED;
+        }
+        return Verdict.ALLOWED;
+    }
+
+    private static int limit(RealmModel realm, String attribute, int defaultLimit) {
+        Integer limit = realm.getAttribute(attribute, defaultLimit);
+        return limit == null ? defaultLimit : limit;
+    }
+
+    // Same mailbox whatever the case and the spaces
+    static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,94 @@
+package fr.lva.keycloak.authentication.throttle;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate hits per key over a sliding window, in a fixed amount of memory.
+ * <p>
+ * Keys are hashed to one cell in each of two rows, like a count-min sketch, and the smallest
+ * estimate wins. A cell packs in a single long the window it counts, the previous window count and
+ * the current one, updated with a CAS. The sliding count weights the previous window by the part of
+ * it still covered. Cells of keys not seen for two windows are reset by their next hit.
+ */
+public class SlidingWindowCounter {
+
+    private static final int ROWS = 2;
+    private static final int COUNT_BITS = 20;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long WINDOW_MASK = (1L << (64 - 2 * COUNT_BITS)) - 1;
+
+    private final long windowNanos;
+    private final long origin = System.nanoTime();
+    private final int mask;
+    private final AtomicLongArray cells;
+    // Random so that colliding keys can't be chosen in advance
+    private final long[] seeds = new long[ROWS];
+
+    /**
+     * @param windowNanos length of the window
+     * @param cells       cells per row, rounded up to a power of two
+     */
+    public SlidingWindowCounter(long windowNanos, int cells) {
+        this.windowNanos = windowNanos;
+        int size = Integer.highestOneBit(Math.max(2, cells - 1)) << 1;
+        this.mask = size - 1;
+        this.cells = new AtomicLongArray(size * ROWS);
+        SecureRandom random = new SecureRandom();
+        for (int row = 0; row < ROWS; row++) {
+            seeds[row] = random.nextLong();
+        }
+    }
+
+    /**
+     * Count a hit
+     *
+     * @return hits of the key in the last window, this one included
+     */
+    public double increment(String key) {
+        long elapsed = System.nanoTime() - origin;
+        long window = (elapsed / windowNanos) & WINDOW_MASK;
+        double previousWeight = 1.0 - (double) (elapsed % windowNanos) / windowNanos;
+
+        double estimate = Double.MAX_VALUE;
+        for (int row = 0; row < ROWS; row++) {
+            int index = row * (mask + 1) + (int) (hash(key, seeds[row]) & mask);
+            long cell;
+            long updated;
+            do {
+                cell = cells.get(index);
+                long cellWindow = cell >>> (2 * COUNT_BITS);
+                long previous = (cell >>> COUNT_BITS) & COUNT_MASK;
+                long current = cell & COUNT_MASK;
+                if (cellWindow == window) {
+                    updated = pack(window, previous, Math.min(current + 1, COUNT_MASK));
+                } else if (cellWindow == ((window - 1) & WINDOW_MASK)) {
+                    updated = pack(window, current, 1);
+                } else {
+                    updated = pack(window, 0, 1);
+                }
+            } while (!cells.compareAndSet(index, cell, updated));
+            long previous = (updated >>> COUNT_BITS) & COUNT_MASK;
+            long current = updated & COUNT_MASK;
+            estimate = Math.min(estimate, current + previous * previousWeight);
+        }
+        return estimate;
+    }
+
+    private static long pack(long window, long previous, long current) {
+        return window << (2 * COUNT_BITS) | previous << COUNT_BITS | current;
+    }
+
+    // FNV-1a from a random basis, then mixed
+    private static long hash(String key, long seed) {
+        long hash = seed;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,71 @@
+package fr.lva.keycloak.email.brevo;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Semaphore whose permits can also be awaited without blocking a thread.
+ * <p>
+ * Waiters are served in order. A permit released while callers wait is handed to the
+ * first of them, completing its future on the releasing thread.
+ */
+class AsyncPermits {
+
+    private static final CompletableFuture<Void> GRANTED = CompletableFuture.completedFuture(null);
+
+    private final Queue<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private int available;
+
+    AsyncPermits(int permits) {
+        this.available = permits;
+    }
+
+    /**
+     * @return completed once a permit is granted to the caller
+     */
+    CompletableFuture<Void> acquireAsync() {
+        synchronized (this) {
+            if (available > 0) {
+                available--;
+                return GRANTED;
+            }
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+            return waiter;
+        }
+    }
+
+    void acquire() throws InterruptedException {
+        CompletableFuture<Void> permit = acquireAsync();
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            if (!permit.cancel(false)) {
+                // Granted meanwhile
+                release();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void release() {
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                next = waiters.poll();
+                if (next == null) {
+                    available++;
+                    return;
+                }
+            }
+            // Skip the waiters cancelled meanwhile
+            if (next.complete(null)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package fr.lva.keycloak.email.brevo;
+
+import org.keycloak.email.EmailException;
+
+import java.time.Duration;
+
+/**
+ * Brevo answered with a non 2xx status
+ */
+public class BrevoApiException extends EmailException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final Duration retryAfter;
+
+    public BrevoApiException(int status) {
+        this(status, null);
+    }
+
+    public BrevoApiException(int status, Duration retryAfter) {
+        super("Brevo API call failed with status " + status);
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return delay requested by Brevo through the Retry-After header, null if absent
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * @return true if the failure comes from Brevo (5xx or rate limit) and not from the request
+     */
+    public boolean isServerSide() {
+        return status >= 500 || isRateLimited();
+    }
+
+    /**
+     * @return true if Brevo refused the call because of the account rate limit, Brevo is healthy
+     */
+    public boolean isRateLimited() {
+        return status == 429;
+    }
+}
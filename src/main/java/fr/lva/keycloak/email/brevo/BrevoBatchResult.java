@@ -0,0 +1,34 @@
+package fr.lva.keycloak.email.brevo;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per recipient outcome of {@link BrevoClient#sendBatch(List)}
+ */
+public class BrevoBatchResult {
+
+    private final List<BrevoMessage> delivered = new ArrayList<>();
+    private final Map<BrevoMessage, Exception> failures = new IdentityHashMap<>();
+
+    void delivered(BrevoMessage message) {
+        delivered.add(message);
+    }
+
+    void failed(BrevoMessage message, Exception cause) {
+        failures.put(message, cause);
+    }
+
+    public List<BrevoMessage> getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Messages Brevo didn't accept, with the cause of the failure
+     */
+    public Map<BrevoMessage, Exception> getFailures() {
+        return failures;
+    }
+}
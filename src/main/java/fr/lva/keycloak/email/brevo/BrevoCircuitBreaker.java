@@ -0,0 +1,173 @@
+package fr.lva.keycloak.email.brevo;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker protecting the calls to Brevo, shared by every session.
+ * <p>
+ * Tracks the outcome of the last calls in a rolling window. When too many of them fail
+ * or are too slow the circuit opens and callers go straight to SMTP instead of waiting
+ * for Brevo to time out. After a pause a few trial calls are let through (half-open),
+ * their outcome decides whether the circuit closes again.
+ */
+public class BrevoCircuitBreaker {
+
+    private static final Logger LOG = Logger.getLogger(BrevoCircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int minimumCalls;
+    private final int failureRatePercent;
+    private final long slowCallNanos;
+    private final int slowCallRatePercent;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    // Rolling window of the last outcomes
+    private final boolean[] failures;
+    private final boolean[] slowCalls;
+    private int position;
+    private int recorded;
+    private int failureCount;
+    private int slowCallCount;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    public BrevoCircuitBreaker(int windowSize,
+                               int minimumCalls,
+                               int failureRatePercent,
+                               long slowCallMillis,
+                               int slowCallRatePercent,
+                               long openMillis,
+                               int halfOpenCalls) {
+        this.failures = new boolean[windowSize];
+        this.slowCalls = new boolean[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRatePercent = failureRatePercent;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.slowCallRatePercent = slowCallRatePercent;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    public static BrevoCircuitBreaker fromConfig(Config.Scope config) {
+        return new BrevoCircuitBreaker(
+                config.getInt("brevoBreakerWindow", 20),
+                config.getInt("brevoBreakerMinimumCalls", 10),
+                config.getInt("brevoBreakerFailureRate", 50),
+                config.getLong("brevoBreakerSlowCallThreshold", 3000L),
+                config.getInt("brevoBreakerSlowCallRate", 80),
+                TimeUnit.SECONDS.toMillis(config.getLong("brevoBreakerOpenDuration", 30L)),
+                config.getInt("brevoBreakerHalfOpenCalls", 3)
+        );
+    }
+
+    /**
+     * @return false if Brevo is considered unhealthy and the call must not be made
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                return false;
+            }
+            transition(State.HALF_OPEN);
+            halfOpenPermits = halfOpenCalls;
+            halfOpenSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenPermits == 0) {
+                return false;
+            }
+            halfOpenPermits--;
+        }
+        return true;
+    }
+
+    /**
+     * Record the outcome of a call allowed by {@link #tryAcquire()}
+     *
+     * @param failed        true if Brevo answered with a server error or didn't answer
+     * @param durationNanos duration of the call
+     */
+    public synchronized void record(boolean failed, long durationNanos) {
+        boolean slow = durationNanos >= slowCallNanos;
+        if (state == State.HALF_OPEN) {
+            if (failed || slow) {
+                open();
+            } else if (++halfOpenSuccesses >= halfOpenCalls) {
+                reset();
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // Call started before the circuit opened
+            return;
+        }
+
+        if (recorded == failures.length) {
+            failureCount -= failures[position] ? 1 : 0;
+            slowCallCount -= slowCalls[position] ? 1 : 0;
+        } else {
+            recorded++;
+        }
+        failures[position] = failed;
+        slowCalls[position] = slow;
+        failureCount += failed ? 1 : 0;
+        slowCallCount += slow ? 1 : 0;
+        position = (position + 1) % failures.length;
+
+        if (recorded >= minimumCalls
+                && (failureCount * 100 >= failureRatePercent * recorded
+                || slowCallCount * 100 >= slowCallRatePercent * recorded)) {
+            open();
+        }
+    }
+
+    /**
+     * Give back a permit of a call allowed by {@link #tryAcquire()} but never made, or rate limited
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            halfOpenPermits++;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void open() {
+        reset();
+        openedAt = System.nanoTime();
+        transition(State.OPEN);
+    }
+
+    private void reset() {
+        position = 0;
+        recorded = 0;
+        failureCount = 0;
+        slowCallCount = 0;
+    }
+
+    private void transition(State newState) {
+        if (state != newState) {
+            if (newState == State.OPEN) {
+                LOG.warnf("Brevo circuit breaker %s -> OPEN, emails are sent through SMTP", state);
+            } else {
+                LOG.infof("Brevo circuit breaker %s -> %s", state, newState);
+            }
+            state = newState;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package fr.lva.keycloak.email.brevo;
+
+import fr.lva.keycloak.email.brevo.ratelimit.BrevoRateLimiter;
+import fr.lva.keycloak.email.metrics.EmailMetrics;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.email.EmailException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Long-lived HTTP client for the Brevo transactional email API.
+ * <p>
+ * One instance is owned by {@link fr.lva.keycloak.email.factory.CustomEmailSenderProviderFactory}
+ * and shared by every session, so sends reuse warm HTTP/2 connections to Brevo
+ * instead of paying a new connection pool and TLS handshake per request.
+ */
+public class BrevoClient implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(BrevoClient.class);
+
+    public static final String DEFAULT_URL = "https://api.brevo.com/v3/smtp/email";
+    private static final long RATE_LIMIT_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final URI endpoint;
+    private final String apiKey;
+    private final Duration requestTimeout;
+    private final AsyncPermits inFlight;
+    private final BrevoCircuitBreaker circuitBreaker;
+    private final BrevoRetryPolicy retryPolicy;
+    private final long rateLimitMaxWaitNanos;
+    // Replaced in postInit once the cluster can be reached
+    private volatile BrevoRateLimiter rateLimiter = BrevoRateLimiter.UNLIMITED;
+    private final ExecutorService executor;
+    private final HttpClient httpClient;
+    private final BrevoPayloadWriter payloadWriter;
+    private final ByteBufferPool bufferPool;
+    private final boolean gzip;
+    private final EmailMetrics metrics = EmailMetrics.global();
+
+    public BrevoClient(URI endpoint,
+                       String apiKey,
+                       Duration connectTimeout,
+                       Duration requestTimeout,
+                       int maxConcurrentRequests,
+                       int ioThreads,
+                       BrevoCircuitBreaker circuitBreaker,
+                       BrevoRetryPolicy retryPolicy,
+                       long rateLimitMaxWaitNanos,
+                       boolean gzip) {
+        this.endpoint = endpoint;
+        this.apiKey = apiKey;
+        this.requestTimeout = requestTimeout;
+        // Bound the number of requests sharing the pooled connections
+        this.inFlight = new AsyncPermits(maxConcurrentRequests);
+        this.circuitBreaker = circuitBreaker;
+        this.retryPolicy = retryPolicy;
+        this.rateLimitMaxWaitNanos = rateLimitMaxWaitNanos;
+        this.executor = Executors.newFixedThreadPool(ioThreads, new BrevoThreadFactory());
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .build();
+        this.payloadWriter = new BrevoPayloadWriter(maxConcurrentRequests);
+        this.bufferPool = new ByteBufferPool(16 * 1024, 4 * maxConcurrentRequests);
+        this.gzip = gzip;
+    }
+
+    /**
+     * Build a client from the provider configuration, ex :
+     * {@code --spi-email-sender-default-brevo-max-concurrent-requests=64}
+     */
+    public static BrevoClient fromConfig(Config.Scope config, String defaultApiKey) {
+        return new BrevoClient(
+                URI.create(config.get("brevoUrl", DEFAULT_URL)),
+                config.get("brevoApiKey", defaultApiKey),
+                Duration.ofSeconds(config.getInt("brevoConnectTimeout", 5)),
+                Duration.ofSeconds(config.getInt("brevoRequestTimeout", 10)),
+                config.getInt("brevoMaxConcurrentRequests", 32),
+                config.getInt("brevoIoThreads", 4),
+                BrevoCircuitBreaker.fromConfig(config),
+                BrevoRetryPolicy.fromConfig(config),
+                BrevoRateLimiter.defaultMaxWaitNanos(config),
+                config.getBoolean("brevoGzip", false)
+        );
+    }
+
+    /**
+     * Serialize and post a message to the Brevo API.
+     *
+     * @throws BrevoApiException         if Brevo answers with a non 2xx status
+     * @throws BrevoUnavailableException if the circuit breaker is open
+     */
+    public void send(BrevoMessage message) throws IOException, InterruptedException, EmailException {
+        post(out -> payloadWriter.write(message, out));
+    }
+
+    /**
+     * Send a message, retrying transient failures on the calling thread according to the
+     * {@link BrevoRetryPolicy}. Only used when emails are sent from the request thread, the
+     * {@link BrevoMailQueue} schedules its retries itself.
+     */
+    public void sendWithRetry(BrevoMessage message) throws IOException, InterruptedException, EmailException {
+        long start = System.nanoTime();
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            try {
+                send(message);
+                return;
+            } catch (IOException | EmailException e) {
+                long delay = retryPolicy.nextDelayNanos(attempts, e, System.nanoTime() - start);
+                if (delay < 0) {
+                    throw e;
+                }
+                LOG.debugf("Brevo call failed (%s), retrying in %d ms", e.getMessage(), TimeUnit.NANOSECONDS.toMillis(delay));
+                metrics.recordRetry();
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Asynchronous {@link #send(BrevoMessage)}, the future fails with the same exceptions
+     */
+    public CompletableFuture<Void> sendAsync(BrevoMessage message) {
+        return postAsync(out -> payloadWriter.write(message, out));
+    }
+
+    /**
+     * Asynchronous {@link #sendWithRetry(BrevoMessage)}, retries are scheduled instead of slept
+     */
+    public CompletableFuture<Void> sendWithRetryAsync(BrevoMessage message) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        attemptAsync(message, 1, System.nanoTime(), result);
+        return result;
+    }
+
+    private void attemptAsync(BrevoMessage message, int attempts, long start, CompletableFuture<Void> result) {
+        sendAsync(message).whenComplete((ignored, error) -> {
+            if (error == null) {
+                result.complete(null);
+                return;
+            }
+            Throwable cause = unwrap(error);
+            long delay = cause instanceof Exception e ? retryPolicy.nextDelayNanos(attempts, e, System.nanoTime() - start) : -1;
+            if (delay < 0) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            LOG.debugf("Brevo call failed (%s), retrying in %d ms", cause.getMessage(), TimeUnit.NANOSECONDS.toMillis(delay));
+            metrics.recordRetry();
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, executor)
+                    .execute(() -> attemptAsync(message, attempts + 1, start, result));
+        });
+    }
+
+    /**
+     * Send several messages sharing the same sender and subject in a single request,
+     * using Brevo messageVersions.
+     * <p>
+     * If Brevo rejects the whole batch as invalid, every message is sent again on its own
+     * so only the invalid recipients fail.
+     *
+     * @return outcome of each message
+     */
+    public BrevoBatchResult sendBatch(List<BrevoMessage> messages) throws InterruptedException {
+        BrevoBatchResult result = new BrevoBatchResult();
+        if (messages.size() == 1) {
+            sendOne(messages.get(0), result);
+            return result;
+        }
+        try {
+            post(out -> payloadWriter.writeBatch(messages, out));
+            messages.forEach(result::delivered);
+            return result;
+        } catch (BrevoApiException e) {
+            if (e.isServerSide()) {
+                messages.forEach(message -> result.failed(message, e));
+                return result;
+            }
+            LOG.warnf("Brevo rejected a batch of %d messages, sending them one by one : %s", messages.size(), e.getMessage());
+        } catch (IOException | EmailException e) {
+            // Brevo is unreachable or the circuit breaker is open
+            messages.forEach(message -> result.failed(message, e));
+            return result;
+        }
+        for (BrevoMessage message : messages) {
+            sendOne(message, result);
+        }
+        return result;
+    }
+
+    private void sendOne(BrevoMessage message, BrevoBatchResult result) throws InterruptedException {
+        try {
+            send(message);
+            result.delivered(message);
+        } catch (IOException | EmailException e) {
+            result.failed(message, e);
+        }
+    }
+
+    private void post(Payload payload) throws IOException, InterruptedException, EmailException {
+        if (!rateLimiter.acquire(rateLimitMaxWaitNanos)) {
+            throw new BrevoThrottledException();
+        }
+        if (!circuitBreaker.tryAcquire()) {
+            throw new BrevoUnavailableException();
+        }
+
+        BrevoRequestBody body = new BrevoRequestBody(bufferPool);
+        long start = 0;
+        HttpResponse<String> response;
+        try {
+            HttpRequest request = buildRequest(payload, body);
+            inFlight.acquire();
+            start = System.nanoTime();
+            try {
+                response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            } finally {
+                inFlight.release();
+            }
+        } catch (IOException e) {
+            if (start != 0) {
+                circuitBreaker.record(true, System.nanoTime() - start);
+            } else {
+                circuitBreaker.release();
+            }
+            throw e;
+        } catch (InterruptedException | RuntimeException e) {
+            circuitBreaker.release();
+            throw e;
+        } finally {
+            // Answered or abandoned, the exchange doesn't read the body anymore
+            body.release();
+        }
+        checkResponse(response, start);
+    }
+
+    /**
+     * Same as {@link #post(Payload)} without blocking : waiting for a rate limit permit, an in-flight
+     * slot or the response doesn't hold the calling thread
+     */
+    private CompletableFuture<Void> postAsync(Payload payload) {
+        return acquireRateAsync(System.nanoTime() + rateLimitMaxWaitNanos).thenCompose(ignored -> {
+            if (!circuitBreaker.tryAcquire()) {
+                return CompletableFuture.failedFuture(new BrevoUnavailableException());
+            }
+            BrevoRequestBody body = new BrevoRequestBody(bufferPool);
+            HttpRequest request;
+            try {
+                request = buildRequest(payload, body);
+            } catch (IOException | RuntimeException e) {
+                body.release();
+                circuitBreaker.release();
+                return CompletableFuture.failedFuture(e);
+            }
+            return inFlight.acquireAsync().thenCompose(permit -> {
+                long start = System.nanoTime();
+                CompletableFuture<HttpResponse<String>> sent;
+                try {
+                    sent = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+                } catch (RuntimeException e) {
+                    // Refused before any exchange, ex : client shut down
+                    inFlight.release();
+                    body.release();
+                    circuitBreaker.release();
+                    return CompletableFuture.failedFuture(e);
+                }
+                return sent
+                        .handle((response, error) -> {
+                            inFlight.release();
+                            body.release();
+                            if (error != null) {
+                                circuitBreaker.record(true, System.nanoTime() - start);
+                                throw new CompletionException(unwrap(error));
+                            }
+                            try {
+                                checkResponse(response, start);
+                            } catch (BrevoApiException e) {
+                                throw new CompletionException(e);
+                            }
+                            return null;
+                        });
+            });
+        });
+    }
+
+    /**
+     * Poll the rate limiter until a permit is available or the deadline is reached
+     */
+    private CompletableFuture<Void> acquireRateAsync(long deadline) {
+        try {
+            if (rateLimiter.acquire(0)) {
+                return CompletableFuture.completedFuture(null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return CompletableFuture.failedFuture(new BrevoThrottledException());
+        }
+        Executor delayed = CompletableFuture.delayedExecutor(Math.min(remaining, RATE_LIMIT_POLL_NANOS),
+                TimeUnit.NANOSECONDS, executor);
+        return CompletableFuture.runAsync(() -> {}, delayed).thenCompose(ignored -> acquireRateAsync(deadline));
+    }
+
+    private HttpRequest buildRequest(Payload payload, BrevoRequestBody body) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(endpoint)
+                .header("Content-Type", "application/json; charset=UTF-8")
+                .header("accept", "application/json")
+                .header("api-key", apiKey)
+                .timeout(requestTimeout);
+        if (gzip) {
+            builder.header("Content-Encoding", "gzip");
+            try (GZIPOutputStream out = new GZIPOutputStream(body, 8 * 1024)) {
+                payload.writeTo(out);
+            }
+        } else {
+            payload.writeTo(body);
+        }
+        metrics.recordPayloadSize(body.contentLength());
+        return builder.POST(body).build();
+    }
+
+    private void checkResponse(HttpResponse<String> response, long start) throws BrevoApiException {
+        int status = response.statusCode();
+        metrics.recordStatus(status);
+        boolean success = status >= 200 && status < 300;
+        BrevoApiException failure = success ? null : new BrevoApiException(status, retryAfter(response));
+        if (failure != null && failure.isRateLimited()) {
+            // Retried by the policy, but says nothing about the health of Brevo
+            circuitBreaker.release();
+        } else {
+            circuitBreaker.record(failure != null && failure.isServerSide(), System.nanoTime() - start);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Cause of a failed future stage
+     */
+    public static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * Parse the Retry-After header, either a number of seconds or an HTTP date
+     */
+    private static Duration retryAfter(HttpResponse<?> response) {
+        String value = response.headers().firstValue("Retry-After").orElse(null);
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return Duration.ofSeconds(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                Instant date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                Duration delay = Duration.between(Instant.now(), date);
+                return delay.isNegative() ? Duration.ZERO : delay;
+            } catch (DateTimeParseException ignored) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Writes a payload into the request body
+     */
+    private interface Payload {
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    public BrevoCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public BrevoRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Delivery metrics shared by the email providers and the queue
+     */
+    public EmailMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void useRateLimiter(BrevoRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void close() {
+        rateLimiter.close();
+        payloadWriter.close();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        LOG.debug("Brevo HTTP client closed");
+    }
+
+    private static class BrevoThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "brevo-http-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
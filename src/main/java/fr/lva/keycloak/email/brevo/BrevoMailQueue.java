@@ -0,0 +1,385 @@
+package fr.lva.keycloak.email.brevo;
+
+import fr.lva.keycloak.email.metrics.EmailMetrics;
+import fr.lva.keycloak.email.routing.EmailTransport;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * In-JVM send queue for Brevo.
+ * <p>
+ * Providers enqueue the rendered {@link BrevoMessage} and return immediately, a pool
+ * of worker threads sends it to Brevo, retries transient failures according to the
+ * {@link BrevoRetryPolicy} and falls back to SMTP when Brevo can't deliver it.
+ * <p>
+ * When a {@link BrevoOutbox} is configured, queued emails are journaled to disk and
+ * the ones left pending by a crash are replayed at startup.
+ */
+public class BrevoMailQueue implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(BrevoMailQueue.class);
+
+    /**
+     * What to do when the queue is full
+     */
+    public enum Backpressure {
+        /** Wait for a free slot */
+        BLOCK,
+        /** Send the message synchronously through SMTP */
+        SMTP,
+        /** Fail the send */
+        REJECT
+    }
+
+    private final BrevoClient brevoClient;
+    private final BrevoRetryPolicy retryPolicy;
+    private final ScheduledExecutorService retryScheduler;
+    private final KeycloakSessionFactory sessionFactory;
+    private final BlockingQueue<BrevoOutbox.Entry> queue;
+    private final Backpressure backpressure;
+    // null if durability is disabled
+    private final BrevoOutbox outbox;
+    private final int batchSize;
+    private final long batchLingerNanos;
+    private final List<Thread> workers;
+    // Emails waiting for a retry, with the failure that delayed them
+    private final Map<BrevoOutbox.Entry, Exception> retrying = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    public BrevoMailQueue(BrevoClient brevoClient,
+                          KeycloakSessionFactory sessionFactory,
+                          int capacity,
+                          int workerCount,
+                          Backpressure backpressure,
+                          BrevoOutbox outbox,
+                          int batchSize,
+                          long batchLingerMillis) {
+        this.brevoClient = brevoClient;
+        this.retryPolicy = brevoClient.getRetryPolicy();
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "brevo-mail-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sessionFactory = sessionFactory;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.backpressure = backpressure;
+        this.outbox = outbox;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(batchLingerMillis);
+        this.workers = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::work, "brevo-mail-queue-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        if (outbox != null) {
+            replay(outbox.recover());
+        }
+    }
+
+    /**
+     * Build the queue from the provider configuration
+     *
+     * @return null if asynchronous sending is disabled
+     */
+    public static BrevoMailQueue fromConfig(Config.Scope config,
+                                            BrevoClient brevoClient,
+                                            KeycloakSessionFactory sessionFactory) {
+        if (!config.getBoolean("brevoAsync", false)) {
+            return null;
+        }
+        return new BrevoMailQueue(
+                brevoClient,
+                sessionFactory,
+                config.getInt("brevoQueueCapacity", 1000),
+                config.getInt("brevoQueueWorkers", 4),
+                Backpressure.valueOf(config.get("brevoQueueBackpressure", "smtp").toUpperCase(Locale.ROOT)),
+                BrevoOutbox.fromConfig(config),
+                config.getInt("brevoBatchSize", 1),
+                config.getLong("brevoBatchLinger", 20L)
+        );
+    }
+
+    /**
+     * Add a message to the queue
+     *
+     * @return false if the queue is full and the caller must send the message through SMTP
+     * @throws QueueFullException if the queue is full and the backpressure policy is {@link Backpressure#REJECT}
+     * @throws EmailException      if interrupted while waiting for a free slot
+     */
+    public boolean enqueue(BrevoMessage message) throws EmailException {
+        if (!running) {
+            return false;
+        }
+        BrevoOutbox.Entry entry = BrevoOutbox.Entry.of(message);
+        // Journaled before a worker can see it, its acknowledgement always follows the record
+        journal(entry);
+        if (queue.offer(entry)) {
+            return true;
+        }
+        switch (backpressure) {
+            case BLOCK:
+                try {
+                    queue.put(entry);
+                    return true;
+                } catch (InterruptedException e) {
+                    complete(entry);
+                    Thread.currentThread().interrupt();
+                    throw new EmailException("Interrupted while waiting for the Brevo queue", e);
+                }
+            case REJECT:
+                complete(entry);
+                throw new QueueFullException();
+            case SMTP:
+            default:
+                // Sent by the caller, not replayed
+                complete(entry);
+                LOG.warn("Brevo queue is full, sending through SMTP");
+                brevoClient.getMetrics().recordFallback(EmailMetrics.FallbackReason.QUEUE_FULL);
+                return false;
+        }
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Wait for the email to be synced to disk, so it survives a crash once the provider returns
+     */
+    private void journal(BrevoOutbox.Entry entry) throws EmailException {
+        if (outbox == null) {
+            return;
+        }
+        try {
+            outbox.append(entry).get(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmailException("Interrupted while journaling email", e);
+        } catch (ExecutionException | TimeoutException e) {
+            // Email is queued anyway, only durability is lost
+            LOG.warnf(e, "Failed to journal email to %s in Brevo outbox", entry.getMessage().getRecipient());
+        }
+    }
+
+    /**
+     * Queue the emails recovered from the outbox, from a separate thread as they may exceed the capacity
+     */
+    private void replay(List<BrevoOutbox.Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Thread replay = new Thread(() -> {
+            for (BrevoOutbox.Entry entry : entries) {
+                try {
+                    queue.put(entry);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            LOG.infof("Replayed %d email(s) from Brevo outbox", entries.size());
+        }, "brevo-outbox-replay");
+        replay.setDaemon(true);
+        replay.start();
+    }
+
+    private void work() {
+        List<BrevoOutbox.Entry> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                BrevoOutbox.Entry entry = queue.poll(1, TimeUnit.SECONDS);
+                if (entry == null) {
+                    continue;
+                }
+                batch.add(entry);
+                collect(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (batch.isEmpty()) {
+                    return;
+                }
+            }
+            deliver(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Wait up to the linger time for more emails to send in the same batch
+     */
+    private void collect(List<BrevoOutbox.Entry> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + batchLingerNanos;
+        while (batch.size() < batchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            BrevoOutbox.Entry entry = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (entry == null) {
+                break;
+            }
+            batch.add(entry);
+        }
+    }
+
+    private void deliver(List<BrevoOutbox.Entry> batch) {
+        // Only emails with the same sender and subject can share a Brevo request
+        Map<String, List<BrevoOutbox.Entry>> groups = new LinkedHashMap<>();
+        for (BrevoOutbox.Entry entry : batch) {
+            groups.computeIfAbsent(entry.getMessage().batchKey(), key -> new ArrayList<>()).add(entry);
+        }
+        for (List<BrevoOutbox.Entry> group : groups.values()) {
+            Map<BrevoMessage, BrevoOutbox.Entry> entries = new IdentityHashMap<>();
+            List<BrevoMessage> messages = new ArrayList<>(group.size());
+            for (BrevoOutbox.Entry entry : group) {
+                entry.recordAttempt();
+                entries.put(entry.getMessage(), entry);
+                messages.add(entry.getMessage());
+            }
+            long start = System.nanoTime();
+            try {
+                BrevoBatchResult result = brevoClient.sendBatch(messages);
+                brevoClient.getMetrics().recordSend(EmailTransport.BREVO, result.getFailures().isEmpty()
+                        ? EmailMetrics.Outcome.SENT : EmailMetrics.Outcome.FAILED, start);
+                result.getDelivered().forEach(message -> complete(entries.get(message)));
+                result.getFailures().forEach((message, cause) -> retryOrFallback(entries.get(message), cause));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                group.forEach(entry -> retryOrFallback(entry, e));
+            } catch (RuntimeException e) {
+                group.forEach(entry -> retryOrFallback(entry, e));
+            }
+        }
+    }
+
+    /**
+     * Schedule a new attempt off the worker thread if the failure is transient, otherwise send through SMTP
+     */
+    private void retryOrFallback(BrevoOutbox.Entry entry, Exception cause) {
+        long delay = retryPolicy.nextDelayNanos(entry.getAttempts(), cause, System.nanoTime() - entry.getFirstAttemptNanos());
+        if (delay >= 0 && running) {
+            LOG.debugf("Brevo call failed (%s), retrying in %d ms", cause.getMessage(), TimeUnit.NANOSECONDS.toMillis(delay));
+            brevoClient.getMetrics().recordRetry();
+            retrying.put(entry, cause);
+            try {
+                retryScheduler.schedule(() -> requeue(entry, cause), delay, TimeUnit.NANOSECONDS);
+                return;
+            } catch (RejectedExecutionException e) {
+                // Queue is closing, unless close() already took it over
+                if (retrying.remove(entry) == null) {
+                    return;
+                }
+            }
+        }
+        fallback(entry.getMessage(), cause);
+        complete(entry);
+    }
+
+    private void requeue(BrevoOutbox.Entry entry, Exception cause) {
+        if (retrying.remove(entry) == null) {
+            // Taken over by close()
+            return;
+        }
+        if (!queue.offer(entry)) {
+            fallback(entry.getMessage(), cause);
+            complete(entry);
+        }
+    }
+
+    private void complete(BrevoOutbox.Entry entry) {
+        if (outbox != null) {
+            outbox.acknowledge(entry);
+        }
+    }
+
+    private void fallback(BrevoMessage message, Exception cause) {
+        if (cause instanceof BrevoUnavailableException) {
+            LOG.debug("Brevo circuit breaker is open, using default SMTP");
+            brevoClient.getMetrics().recordFallback(EmailMetrics.FallbackReason.UNAVAILABLE);
+        } else {
+            LOG.error("Failed to send email via Brevo, falling back to default SMTP", cause);
+            brevoClient.getMetrics().recordFallback(EmailMetrics.FallbackReason.ERROR);
+        }
+        try {
+            SmtpFallback.sendInNewSession(sessionFactory, message);
+        } catch (EmailException | RuntimeException e) {
+            LOG.errorf(e, "Failed to send email to %s through SMTP, message is lost", message.getRecipient());
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        retryScheduler.shutdownNow();
+        for (Thread worker : workers) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        drainRetries();
+        if (!queue.isEmpty()) {
+            LOG.warnf("%d email(s) still queued for Brevo at shutdown", queue.size());
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    /**
+     * Emails waiting for a retry stay in the outbox and are replayed at next startup,
+     * without outbox they are sent through SMTP rather than lost
+     */
+    private void drainRetries() {
+        if (retrying.isEmpty()) {
+            return;
+        }
+        if (outbox != null) {
+            LOG.infof("%d email(s) waiting for a Brevo retry kept in the outbox", retrying.size());
+            retrying.clear();
+            return;
+        }
+        LOG.warnf("%d email(s) waiting for a Brevo retry at shutdown, sending through SMTP", retrying.size());
+        for (BrevoOutbox.Entry entry : new ArrayList<>(retrying.keySet())) {
+            Exception cause = retrying.remove(entry);
+            if (cause != null) {
+                fallback(entry.getMessage(), cause);
+            }
+        }
+    }
+
+    /**
+     * Thrown when the queue is full and the backpressure policy rejects the email
+     */
+    public static class QueueFullException extends EmailException {
+
+        private static final long serialVersionUID = 1L;
+
+        public QueueFullException() {
+            super("Brevo queue is full");
+        }
+    }
+}
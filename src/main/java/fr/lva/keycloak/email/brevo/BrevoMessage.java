@@ -0,0 +1,121 @@
+package fr.lva.keycloak.email.brevo;
+
+import java.util.Map;
+
+/**
+ * Rendered email ready to be sent through Brevo.
+ * <p>
+ * Only holds plain values so it can leave the {@link org.keycloak.models.KeycloakSession}
+ * that built it, ex : to be sent later by a {@link BrevoMailQueue} worker.
+ */
+public class BrevoMessage {
+
+    private final String realmId;
+    private final Map<String, String> smtpConfig;
+    private final String senderEmail;
+    private final String senderName;
+    private final String recipient;
+    private final String subject;
+    private final String htmlContent;
+    private final String textBody;
+    private final String htmlBody;
+    private final BrevoTemplate template;
+
+    /**
+     * @param realmId     realm of the user, used to open a session for the SMTP fallback
+     * @param smtpConfig  SMTP configuration for the fallback, realm configuration if null
+     * @param htmlContent content sent to Brevo
+     * @param textBody    text body used by the SMTP fallback
+     * @param htmlBody    html body used by the SMTP fallback
+     */
+    public BrevoMessage(String realmId,
+                        Map<String, String> smtpConfig,
+                        String senderEmail,
+                        String senderName,
+                        String recipient,
+                        String subject,
+                        String htmlContent,
+                        String textBody,
+                        String htmlBody) {
+        this(realmId, smtpConfig, senderEmail, senderName, recipient, subject, htmlContent, textBody, htmlBody, null);
+    }
+
+    /**
+     * @param template Brevo template rendering the email, subject and bodies may be null
+     *                 until it is rendered locally for the SMTP fallback
+     */
+    public BrevoMessage(String realmId,
+                        Map<String, String> smtpConfig,
+                        String senderEmail,
+                        String senderName,
+                        String recipient,
+                        String subject,
+                        String htmlContent,
+                        String textBody,
+                        String htmlBody,
+                        BrevoTemplate template) {
+        this.realmId = realmId;
+        this.smtpConfig = smtpConfig != null ? Map.copyOf(smtpConfig) : null;
+        this.senderEmail = senderEmail;
+        this.senderName = senderName;
+        this.recipient = recipient;
+        this.subject = subject;
+        this.htmlContent = htmlContent;
+        this.textBody = textBody;
+        this.htmlBody = htmlBody;
+        this.template = template;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public Map<String, String> getSmtpConfig() {
+        return smtpConfig;
+    }
+
+    public String getSenderEmail() {
+        return senderEmail;
+    }
+
+    public String getSenderName() {
+        return senderName;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getHtmlContent() {
+        return htmlContent;
+    }
+
+    public String getTextBody() {
+        return textBody;
+    }
+
+    public String getHtmlBody() {
+        return htmlBody;
+    }
+
+    /**
+     * @return null if the email is rendered by Keycloak
+     */
+    public BrevoTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * Key of the messages that can be sent in the same Brevo request
+     */
+    public String batchKey() {
+        if (template != null) {
+            return senderEmail + '\n' + senderName + "\n#" + template.getId();
+        }
+        return senderEmail + '\n' + senderName + '\n' + subject;
+    }
+}
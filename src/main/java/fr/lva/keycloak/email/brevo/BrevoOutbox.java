@@ -0,0 +1,405 @@
+package fr.lva.keycloak.email.brevo;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only journal of the emails queued for Brevo.
+ * <p>
+ * Each queued email is journaled before the provider returns and acknowledged once
+ * delivered (through Brevo or SMTP). Writes are grouped by a single writer thread so
+ * concurrent sends share one fsync. Emails still pending when the node stopped are
+ * returned by {@link #recover()} and replayed at startup, which gives at-least-once delivery.
+ * <p>
+ * The SMTP configuration of the messages is not journaled, replayed emails fall back to the
+ * SMTP configuration of their realm. The links of the emails are bearer tokens (action tokens),
+ * so the journal is only readable by its owner.
+ */
+public class BrevoOutbox implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(BrevoOutbox.class);
+
+    private static final String OP_ENQUEUE = "enqueue";
+    private static final String OP_ACK = "ack";
+    // Journal is rewritten with the pending emails once it grew over this size
+    private static final long COMPACT_THRESHOLD = 16L * 1024 * 1024;
+    private static final TypeReference<List<String>> STRING_LIST = new TypeReference<>() {
+    };
+    private static final TypeReference<Map<String, String>> STRING_MAP = new TypeReference<>() {
+    };
+    private static final int MAX_BATCH = 512;
+    // rw------- where supported, set when the file is created
+    private static final FileAttribute<?>[] OWNER_ONLY =
+            FileSystems.getDefault().supportedFileAttributeViews().contains("posix")
+                    ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+                    : new FileAttribute<?>[0];
+
+    private final Path path;
+    private final long flushIntervalNanos;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BlockingQueue<Record> pending = new LinkedBlockingQueue<>();
+    // Appended and not acknowledged yet, what a compaction keeps
+    private final Map<String, Entry> live = new ConcurrentHashMap<>();
+    private final List<Entry> recovered;
+    // Only used by the writer thread
+    private FileChannel channel;
+    private long compactedSize;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public BrevoOutbox(Path path, long flushIntervalMillis) throws IOException {
+        this.path = path;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Map<String, Entry> entries = readPending();
+        this.compactedSize = compact(entries.values());
+        if (!entries.isEmpty()) {
+            LOG.infof("Recovered %d pending email(s) from Brevo outbox %s", entries.size(), path);
+        }
+        this.live.putAll(entries);
+        this.recovered = new ArrayList<>(entries.values());
+        this.channel = open();
+        this.writer = new Thread(this::write, "brevo-outbox-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Open the outbox from the provider configuration
+     *
+     * @return null if no journal path is configured
+     */
+    public static BrevoOutbox fromConfig(Config.Scope config) {
+        String path = config.get("brevoOutboxPath");
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        try {
+            return new BrevoOutbox(Paths.get(path), config.getLong("brevoOutboxFlushInterval", 5L));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open Brevo outbox " + path, e);
+        }
+    }
+
+    /**
+     * Emails journaled but never acknowledged by the previous run
+     */
+    public List<Entry> recover() {
+        return recovered;
+    }
+
+    /**
+     * Journal an email
+     *
+     * @return completed once the entry is written and synced to disk
+     */
+    public CompletableFuture<Void> append(Entry entry) {
+        // Live before its record is queued, a compaction either keeps it or runs before the record is written
+        live.put(entry.getId(), entry);
+        return submit(toRecord(entry));
+    }
+
+    /**
+     * Mark an email as delivered, doesn't wait for the disk sync as a lost
+     * acknowledgement only means the email is sent again
+     */
+    public void acknowledge(Entry entry) {
+        live.remove(entry.getId());
+        Map<String, Object> record = new HashMap<>();
+        record.put("op", OP_ACK);
+        record.put("id", entry.getId());
+        submit(record);
+    }
+
+    private CompletableFuture<Void> submit(Map<String, Object> fields) {
+        Record record = new Record(fields);
+        if (!running) {
+            record.done.completeExceptionally(new IllegalStateException("Brevo outbox is closed"));
+        } else {
+            pending.add(record);
+        }
+        return record.done;
+    }
+
+    private void write() {
+        List<Record> batch = new ArrayList<>();
+        while (running || !pending.isEmpty()) {
+            try {
+                Record first = pending.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                // Give concurrent sends a chance to join the same fsync
+                LockSupport.parkNanos(flushIntervalNanos);
+                batch.add(first);
+                pending.drainTo(batch, MAX_BATCH);
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Record> batch) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            for (Record record : batch) {
+                buffer.write(objectMapper.writeValueAsBytes(record.fields));
+                buffer.write('\n');
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+            batch.forEach(record -> record.done.complete(null));
+        } catch (IOException e) {
+            LOG.errorf(e, "Failed to write Brevo outbox %s", path);
+            batch.forEach(record -> record.done.completeExceptionally(e));
+            return;
+        }
+
+        try {
+            // Pending emails alone may exceed the threshold, don't rewrite them on every batch
+            if (channel.size() > Math.max(COMPACT_THRESHOLD, 2 * compactedSize)) {
+                channel.close();
+                compactedSize = compact(new ArrayList<>(live.values()));
+                channel = open();
+            }
+        } catch (IOException e) {
+            LOG.errorf(e, "Failed to compact Brevo outbox %s", path);
+            if (!channel.isOpen()) {
+                try {
+                    channel = open();
+                } catch (IOException reopen) {
+                    LOG.errorf(reopen, "Brevo outbox %s is no longer writable", path);
+                }
+            }
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(path,
+                Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), OWNER_ONLY);
+    }
+
+    private Map<String, Entry> readPending() throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        if (!Files.exists(path)) {
+            return entries;
+        }
+        List<String> acknowledged = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JsonNode record;
+                try {
+                    record = objectMapper.readTree(line);
+                } catch (IOException e) {
+                    // Partial line written when the node stopped
+                    LOG.warnf("Skipping corrupted Brevo outbox record in %s", path);
+                    continue;
+                }
+                String id = record.path("id").asText();
+                if (OP_ENQUEUE.equals(record.path("op").asText())) {
+                    entries.put(id, new Entry(id, fromRecord(record)));
+                } else {
+                    acknowledged.add(id);
+                }
+            }
+        }
+        // An acknowledgement may be written before its email, order doesn't matter
+        acknowledged.forEach(entries::remove);
+        return entries;
+    }
+
+    /**
+     * Rewrite the journal with the pending emails only
+     *
+     * @return size of the new journal
+     */
+    private long compact(Collection<Entry> entries) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        long size;
+        // Created again so it gets the permissions, and the journal with it, even if an older one was readable
+        Files.deleteIfExists(tmp);
+        try (FileChannel out = FileChannel.open(tmp,
+                Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), OWNER_ONLY)) {
+            for (Entry entry : entries) {
+                ByteBuffer bytes = ByteBuffer.wrap((objectMapper.writeValueAsString(toRecord(entry)) + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+            }
+            out.force(true);
+            size = out.size();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    // The SMTP configuration holds the SMTP password, it is read from the realm at replay
+    private static Map<String, Object> toRecord(Entry entry) {
+        BrevoMessage message = entry.getMessage();
+        Map<String, Object> record = new HashMap<>();
+        record.put("op", OP_ENQUEUE);
+        record.put("id", entry.getId());
+        record.put("realmId", message.getRealmId());
+        record.put("senderEmail", message.getSenderEmail());
+        record.put("senderName", message.getSenderName());
+        record.put("recipient", message.getRecipient());
+        record.put("subject", message.getSubject());
+        record.put("htmlContent", message.getHtmlContent());
+        record.put("textBody", message.getTextBody());
+        record.put("htmlBody", message.getHtmlBody());
+        BrevoTemplate template = message.getTemplate();
+        if (template != null) {
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("id", template.getId());
+            fields.put("name", template.getName());
+            fields.put("subjectKey", template.getSubjectKey());
+            fields.put("subjectAttributes", template.getSubjectAttributes());
+            fields.put("params", template.getParams());
+            fields.put("userId", template.getUserId());
+            record.put("template", fields);
+        }
+        return record;
+    }
+
+    private BrevoMessage fromRecord(JsonNode record) {
+        JsonNode fields = record.get("template");
+        BrevoTemplate template = fields == null || fields.isNull() ? null : new BrevoTemplate(
+                fields.path("id").asLong(),
+                text(fields, "name"),
+                text(fields, "subjectKey"),
+                objectMapper.convertValue(fields.get("subjectAttributes"), STRING_LIST),
+                objectMapper.convertValue(fields.get("params"), STRING_MAP),
+                text(fields, "userId")
+        );
+        return new BrevoMessage(
+                text(record, "realmId"),
+                null,
+                text(record, "senderEmail"),
+                text(record, "senderName"),
+                text(record, "recipient"),
+                text(record, "subject"),
+                text(record, "htmlContent"),
+                text(record, "textBody"),
+                text(record, "htmlBody"),
+                template
+        );
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOG.warnf(e, "Failed to close Brevo outbox %s", path);
+        }
+    }
+
+    /**
+     * Journaled email
+     */
+    public static class Entry {
+
+        private final String id;
+        private final BrevoMessage message;
+        // Only touched by the worker sending the entry
+        private int attempts;
+        private long firstAttemptNanos;
+
+        public Entry(String id, BrevoMessage message) {
+            this.id = id;
+            this.message = message;
+        }
+
+        /**
+         * Count a new attempt to send the email through Brevo
+         */
+        public void recordAttempt() {
+            if (attempts++ == 0) {
+                firstAttemptNanos = System.nanoTime();
+            }
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getFirstAttemptNanos() {
+            return firstAttemptNanos;
+        }
+
+        public static Entry of(BrevoMessage message) {
+            return new Entry(UUID.randomUUID().toString(), message);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public BrevoMessage getMessage() {
+            return message;
+        }
+    }
+
+    private static class Record {
+
+        private final Map<String, Object> fields;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Record(Map<String, Object> fields) {
+            this.fields = fields;
+        }
+    }
+}
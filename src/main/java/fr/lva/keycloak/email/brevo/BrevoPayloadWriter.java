@@ -0,0 +1,231 @@
+package fr.lva.keycloak.email.brevo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonFactoryBuilder;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the Brevo /v3/smtp/email payloads.
+ * <p>
+ * The sender block never changes for a given configuration, it is serialized once and
+ * copied as raw JSON. Only the recipient, subject and content are streamed per email,
+ * through a pooled generator, straight into the request body.
+ * <p>
+ * The generators are held by the writer rather than by the threads, the pool is bounded and
+ * emptied on {@link #close()} : nothing survives a redeployment of the provider.
+ */
+public class BrevoPayloadWriter {
+
+    private static final SerializableString SENDER = new SerializedString("sender");
+    private static final SerializableString EMAIL = new SerializedString("email");
+    private static final SerializableString NAME = new SerializedString("name");
+    private static final SerializableString TO = new SerializedString("to");
+    private static final SerializableString SUBJECT = new SerializedString("subject");
+    private static final SerializableString HTML_CONTENT = new SerializedString("htmlContent");
+    private static final SerializableString MESSAGE_VERSIONS = new SerializedString("messageVersions");
+    private static final SerializableString TEMPLATE_ID = new SerializedString("templateId");
+    private static final SerializableString PARAMS = new SerializedString("params");
+
+    // No separator between the root values written by a reused generator
+    private final JsonFactory jsonFactory = new JsonFactoryBuilder().rootValueSeparator((String) null).build();
+    private final Map<String, String> senderBlocks = new ConcurrentHashMap<>();
+    private final int maxPooled;
+    private final Queue<PooledGenerator> generators = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param maxPooled generators kept between payloads, about the number of threads writing them
+     */
+    public BrevoPayloadWriter(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Payload of a single email
+     */
+    public void write(BrevoMessage message, OutputStream out) throws IOException {
+        PooledGenerator pooled = acquire(out);
+        try {
+            JsonGenerator generator = pooled.generator;
+            generator.writeStartObject();
+            writeHeader(generator, message);
+            generator.writeFieldName(TO);
+            writeRecipients(generator, message);
+            generator.writeEndObject();
+            pooled.finish();
+        } catch (IOException | RuntimeException e) {
+            // Generator state is unknown, not given back to the pool
+            pooled.target.out = null;
+            throw e;
+        }
+        release(pooled);
+    }
+
+    /**
+     * Single payload for emails sharing the same {@link BrevoMessage#batchKey()},
+     * each recipient gets its own message version
+     */
+    public void writeBatch(List<BrevoMessage> messages, OutputStream out) throws IOException {
+        PooledGenerator pooled = acquire(out);
+        try {
+            JsonGenerator generator = pooled.generator;
+            generator.writeStartObject();
+            writeHeader(generator, messages.get(0));
+            generator.writeFieldName(MESSAGE_VERSIONS);
+            generator.writeStartArray();
+            for (BrevoMessage message : messages) {
+                generator.writeStartObject();
+                generator.writeFieldName(TO);
+                writeRecipients(generator, message);
+                writeContent(generator, message);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+            pooled.finish();
+        } catch (IOException | RuntimeException e) {
+            pooled.target.out = null;
+            throw e;
+        }
+        release(pooled);
+    }
+
+    private void writeHeader(JsonGenerator generator, BrevoMessage message) throws IOException {
+        generator.writeFieldName(SENDER);
+        generator.writeRawValue(senderBlock(message.getSenderEmail(), message.getSenderName()));
+        if (message.getTemplate() != null) {
+            // Subject and content come from the Brevo template
+            generator.writeFieldName(TEMPLATE_ID);
+            generator.writeNumber(message.getTemplate().getId());
+        } else {
+            generator.writeFieldName(SUBJECT);
+            generator.writeString(message.getSubject());
+        }
+        writeContent(generator, message);
+    }
+
+    private static void writeContent(JsonGenerator generator, BrevoMessage message) throws IOException {
+        BrevoTemplate template = message.getTemplate();
+        if (template == null) {
+            generator.writeFieldName(HTML_CONTENT);
+            generator.writeString(message.getHtmlContent());
+            return;
+        }
+        generator.writeFieldName(PARAMS);
+        generator.writeStartObject();
+        for (Map.Entry<String, String> param : template.getParams().entrySet()) {
+            generator.writeFieldName(param.getKey());
+            generator.writeString(param.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeRecipients(JsonGenerator generator, BrevoMessage message) throws IOException {
+        generator.writeStartArray();
+        generator.writeStartObject();
+        generator.writeFieldName(EMAIL);
+        generator.writeString(message.getRecipient());
+        generator.writeEndObject();
+        generator.writeEndArray();
+    }
+
+    private String senderBlock(String email, String name) {
+        return senderBlocks.computeIfAbsent(email + '\n' + name, key -> {
+            StringWriter json = new StringWriter();
+            try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+                generator.writeStartObject();
+                generator.writeFieldName(EMAIL);
+                generator.writeString(email);
+                generator.writeFieldName(NAME);
+                generator.writeString(name);
+                generator.writeEndObject();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return json.toString();
+        });
+    }
+
+    private PooledGenerator acquire(OutputStream out) throws IOException {
+        PooledGenerator pooled = generators.poll();
+        if (pooled == null) {
+            pooled = new PooledGenerator(jsonFactory);
+        } else {
+            this.pooled.decrementAndGet();
+        }
+        pooled.target.out = out;
+        return pooled;
+    }
+
+    /**
+     * Give a generator back, dropped if the pool is full
+     */
+    private void release(PooledGenerator generator) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            generators.offer(generator);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Drop the pooled generators and the cached sender blocks
+     */
+    public void close() {
+        while (generators.poll() != null) {
+            pooled.decrementAndGet();
+        }
+        senderBlocks.clear();
+    }
+
+    /**
+     * Generator reused across payloads, bound to a stream redirected to each request body
+     */
+    private static class PooledGenerator {
+
+        private final RedirectOutputStream target = new RedirectOutputStream();
+        private final JsonGenerator generator;
+
+        private PooledGenerator(JsonFactory jsonFactory) throws IOException {
+            this.generator = jsonFactory.createGenerator(target);
+        }
+
+        private void finish() throws IOException {
+            generator.flush();
+            target.out = null;
+        }
+    }
+
+    private static class RedirectOutputStream extends OutputStream {
+
+        private OutputStream out;
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package fr.lva.keycloak.email.brevo;
+
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request body written into pooled buffers and handed to the HTTP client as is.
+ * <p>
+ * The payload is never copied into a contiguous array nor turned into a String, large
+ * HTML emails only use a few pooled chunks which are reused once the request is done.
+ */
+public class BrevoRequestBody extends OutputStream implements HttpRequest.BodyPublisher {
+
+    private final ByteBufferPool pool;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private long length;
+
+    public BrevoRequestBody(ByteBufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity().put((byte) b);
+        length++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) {
+        while (count > 0) {
+            ByteBuffer buffer = ensureCapacity();
+            int written = Math.min(count, buffer.remaining());
+            buffer.put(bytes, offset, written);
+            offset += written;
+            count -= written;
+            length += written;
+        }
+    }
+
+    private ByteBuffer ensureCapacity() {
+        if (current == null || !current.hasRemaining()) {
+            current = pool.acquire();
+            chunks.add(current);
+        }
+        return current;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        List<ByteBuffer> content = new ArrayList<>(chunks.size());
+        for (ByteBuffer chunk : chunks) {
+            // Each subscription reads its own view, the HTTP client may subscribe again on retry
+            content.add(chunk.duplicate().flip().asReadOnlyBuffer());
+        }
+        subscriber.onSubscribe(new ChunkSubscription(subscriber, content));
+    }
+
+    /**
+     * Give the chunks back to the pool, once the HTTP exchange is over
+     */
+    public void release() {
+        chunks.forEach(pool::release);
+        chunks.clear();
+        current = null;
+    }
+
+    private static class ChunkSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final List<ByteBuffer> content;
+        private final AtomicLong demand = new AtomicLong();
+        // Serializes the signals sent to the subscriber
+        private final AtomicInteger pending = new AtomicInteger();
+        private int index;
+        private volatile boolean done;
+
+        private ChunkSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, List<ByteBuffer> content) {
+            this.subscriber = subscriber;
+            this.content = content;
+        }
+
+        @Override
+        public void request(long n) {
+            if (done) {
+                return;
+            }
+            if (n <= 0) {
+                done = true;
+                subscriber.onError(new IllegalArgumentException("Non-positive request " + n));
+                return;
+            }
+            demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+        }
+
+        private void drain() {
+            if (pending.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (!done && index < content.size() && demand.get() > 0) {
+                    demand.decrementAndGet();
+                    subscriber.onNext(content.get(index++));
+                }
+                if (!done && index == content.size()) {
+                    done = true;
+                    subscriber.onComplete();
+                }
+            } while (pending.decrementAndGet() != 0);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package fr.lva.keycloak.email.brevo;
+
+import org.keycloak.Config;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retry policy for the transient Brevo failures : rate limit (429), server errors (5xx)
+ * and IO errors. Other 4xx are permanent and never retried.
+ * <p>
+ * Delays grow exponentially from the base delay with a random jitter, Brevo's
+ * {@code Retry-After} header takes precedence when present. No retry is scheduled past
+ * the deadline budget, counted from the first attempt.
+ */
+public class BrevoRetryPolicy {
+
+    private final int maxAttempts;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+    private final double jitter;
+    private final boolean honourRetryAfter;
+    private final long deadlineNanos;
+
+    public BrevoRetryPolicy(int maxAttempts,
+                            long baseDelayMillis,
+                            long maxDelayMillis,
+                            double jitter,
+                            boolean honourRetryAfter,
+                            long deadlineMillis) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayNanos = TimeUnit.MILLISECONDS.toNanos(baseDelayMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.jitter = Math.min(1.0, Math.max(0.0, jitter));
+        this.honourRetryAfter = honourRetryAfter;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    }
+
+    public static BrevoRetryPolicy fromConfig(Config.Scope config) {
+        return new BrevoRetryPolicy(
+                config.getInt("brevoRetryMaxAttempts", 3),
+                config.getLong("brevoRetryBaseDelay", 200L),
+                config.getLong("brevoRetryMaxDelay", 5000L),
+                Double.parseDouble(config.get("brevoRetryJitter", "0.5")),
+                config.getBoolean("brevoRetryHonourRetryAfter", true),
+                config.getLong("brevoRetryDeadline", 5000L)
+        );
+    }
+
+    /**
+     * @param attempts     number of attempts already made
+     * @param failure      failure of the last attempt
+     * @param elapsedNanos time spent since the first attempt
+     * @return delay before the next attempt in nanoseconds, or -1 if the email must not be retried
+     */
+    public long nextDelayNanos(int attempts, Exception failure, long elapsedNanos) {
+        if (attempts >= maxAttempts || !isRetryable(failure)) {
+            return -1;
+        }
+
+        long delay;
+        Duration retryAfter = failure instanceof BrevoApiException apiException ? apiException.getRetryAfter() : null;
+        if (honourRetryAfter && retryAfter != null) {
+            delay = retryAfter.toNanos();
+        } else {
+            long exponential = baseDelayNanos << Math.min(attempts - 1, 20);
+            delay = Math.min(maxDelayNanos, exponential);
+            delay -= (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+        }
+
+        if (elapsedNanos + delay >= deadlineNanos) {
+            return -1;
+        }
+        return delay;
+    }
+
+    private static boolean isRetryable(Exception failure) {
+        if (failure instanceof BrevoApiException apiException) {
+            return apiException.isServerSide();
+        }
+        // Circuit breaker open : the email goes to SMTP straight away
+        return failure instanceof IOException;
+    }
+}
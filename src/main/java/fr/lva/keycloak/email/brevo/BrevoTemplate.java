@@ -0,0 +1,128 @@
+package fr.lva.keycloak.email.brevo;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Brevo template rendering an email on Brevo's side, instead of the Keycloak FreeMarker theme.
+ * <p>
+ * Each Keycloak email type ({@code password-reset}, {@code email-verification}, {@code executeActions}...)
+ * is mapped to a Brevo template id through the {@code brevo.template.<type>} attribute of the client,
+ * or of the realm. The Keycloak template name, subject and attributes are kept so the email can
+ * still be rendered locally if it has to go through SMTP.
+ */
+public class BrevoTemplate {
+
+    private static final Logger LOG = Logger.getLogger(BrevoTemplate.class);
+
+    public static final String ATTRIBUTE_PREFIX = "brevo.template.";
+
+    private final long id;
+    private final String name;
+    private final String subjectKey;
+    private final List<String> subjectAttributes;
+    private final Map<String, String> params;
+    private final String userId;
+
+    /**
+     * @param id                Brevo template id
+     * @param name              Keycloak template, ex : password-reset.ftl
+     * @param subjectKey        message key of the subject in the Keycloak theme
+     * @param subjectAttributes attributes of the subject message
+     * @param params            Brevo template params, also used as FreeMarker attributes for the SMTP fallback
+     * @param userId            user the email is about, needed to render it locally
+     */
+    public BrevoTemplate(long id,
+                         String name,
+                         String subjectKey,
+                         List<String> subjectAttributes,
+                         Map<String, String> params,
+                         String userId) {
+        this.id = id;
+        this.name = name;
+        this.subjectKey = subjectKey;
+        this.subjectAttributes = List.copyOf(subjectAttributes);
+        this.params = Map.copyOf(params);
+        this.userId = userId;
+    }
+
+    /**
+     * Brevo template configured for a Keycloak template, the client mapping takes precedence over the realm one
+     *
+     * @param client   client of the current request, may be null
+     * @param template Keycloak template, ex : password-reset.ftl
+     * @return null if the email must be rendered by Keycloak
+     */
+    public static Long findId(ClientModel client, RealmModel realm, String template) {
+        return findIds(client, realm).get(type(template));
+    }
+
+    /**
+     * Every Brevo template configured for a client, keyed by email type, ex : {@code password-reset}
+     *
+     * @param client client of the current request, may be null
+     */
+    public static Map<String, Long> findIds(ClientModel client, RealmModel realm) {
+        Map<String, Long> ids = new HashMap<>();
+        if (realm != null) {
+            parseIds(realm.getAttributes(), ids);
+        }
+        if (client != null) {
+            // Client mapping overrides the realm one
+            parseIds(client.getAttributes(), ids);
+        }
+        return Map.copyOf(ids);
+    }
+
+    /**
+     * Email type of a Keycloak template, ex : {@code password-reset} for password-reset.ftl
+     */
+    public static String type(String template) {
+        return template.endsWith(".ftl") ? template.substring(0, template.length() - 4) : template;
+    }
+
+    private static void parseIds(Map<String, String> attributes, Map<String, Long> ids) {
+        if (attributes == null) {
+            return;
+        }
+        attributes.forEach((attribute, value) -> {
+            if (!attribute.startsWith(ATTRIBUTE_PREFIX) || value == null || value.isBlank()) {
+                return;
+            }
+            try {
+                ids.put(attribute.substring(ATTRIBUTE_PREFIX.length()), Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                LOG.warnf("Invalid Brevo template id '%s' for %s, ignored", value, attribute);
+            }
+        });
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSubjectKey() {
+        return subjectKey;
+    }
+
+    public List<String> getSubjectAttributes() {
+        return subjectAttributes;
+    }
+
+    public Map<String, String> getParams() {
+        return params;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+}
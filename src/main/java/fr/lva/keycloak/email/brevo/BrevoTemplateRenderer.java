@@ -0,0 +1,56 @@
+package fr.lva.keycloak.email.brevo;
+
+import org.keycloak.email.EmailException;
+import org.keycloak.email.freemarker.FreeMarkerEmailTemplateProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Render locally, with the Keycloak theme, an email meant for a Brevo template
+ */
+class BrevoTemplateRenderer extends FreeMarkerEmailTemplateProvider {
+
+    BrevoTemplateRenderer(KeycloakSession session) {
+        super(session);
+    }
+
+    /**
+     * @return the message with its subject and bodies
+     */
+    BrevoMessage render(RealmModel realm, BrevoMessage message) throws EmailException {
+        BrevoTemplate template = message.getTemplate();
+        UserModel templateUser = session.users().getUserById(realm, template.getUserId());
+        if (templateUser == null) {
+            throw new EmailException("User " + template.getUserId() + " not found to render " + template.getName());
+        }
+        setRealm(realm);
+        setUser(templateUser);
+
+        Map<String, Object> templateAttributes = new HashMap<>(template.getParams());
+        String link = template.getParams().get("link");
+        String linkExpiration = template.getParams().get("linkExpiration");
+        if (link != null && linkExpiration != null) {
+            // Restore the expiration formatter used by the link templates
+            addLinkInfoIntoAttributes(link, Long.parseLong(linkExpiration), templateAttributes);
+        }
+        EmailTemplate email = processTemplate(template.getSubjectKey(),
+                new ArrayList<>(template.getSubjectAttributes()),
+                template.getName(),
+                templateAttributes);
+
+        return new BrevoMessage(message.getRealmId(),
+                message.getSmtpConfig(),
+                message.getSenderEmail(),
+                message.getSenderName(),
+                message.getRecipient(),
+                email.getSubject(),
+                email.getHtmlBody(),
+                email.getTextBody(),
+                email.getHtmlBody());
+    }
+}
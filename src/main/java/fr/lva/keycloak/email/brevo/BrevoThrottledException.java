@@ -0,0 +1,16 @@
+package fr.lva.keycloak.email.brevo;
+
+import java.io.IOException;
+
+/**
+ * No permit of the client-side rate limiter was available in time, the call has not
+ * been made. Transient, so it is retried like a network failure.
+ */
+public class BrevoThrottledException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BrevoThrottledException() {
+        super("Brevo rate limit reached on client side");
+    }
+}
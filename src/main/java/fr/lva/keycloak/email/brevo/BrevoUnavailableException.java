@@ -0,0 +1,15 @@
+package fr.lva.keycloak.email.brevo;
+
+import org.keycloak.email.EmailException;
+
+/**
+ * Brevo is not called because the {@link BrevoCircuitBreaker} is open
+ */
+public class BrevoUnavailableException extends EmailException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BrevoUnavailableException() {
+        super("Brevo circuit breaker is open");
+    }
+}
@@ -0,0 +1,70 @@
+package fr.lva.keycloak.email.brevo;
+
+import org.keycloak.email.DefaultEmailSenderProvider;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.Map;
+
+/**
+ * Send a {@link BrevoMessage} through the Keycloak SMTP sender when Brevo can't be used
+ */
+public final class SmtpFallback {
+
+    private SmtpFallback() {
+        // Utility class
+    }
+
+    public static void send(KeycloakSession session, BrevoMessage message) throws EmailException {
+        if (message.getTemplate() != null && message.getHtmlBody() == null) {
+            // Meant for a Brevo template, never rendered by Keycloak
+            message = new BrevoTemplateRenderer(session).render(findRealm(session, message), message);
+        }
+        Map<String, String> smtpConfig = message.getSmtpConfig();
+        if (smtpConfig == null) {
+            smtpConfig = findRealm(session, message).getSmtpConfig();
+        }
+        new DefaultEmailSenderProvider(session).send(smtpConfig,
+                message.getRecipient(),
+                message.getSubject(),
+                message.getTextBody(),
+                message.getHtmlBody());
+    }
+
+    /**
+     * Send from a thread without Keycloak session, ex : a queue worker or a future callback
+     */
+    public static void sendInNewSession(KeycloakSessionFactory sessionFactory, BrevoMessage message) throws EmailException {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                if (message.getRealmId() != null) {
+                    session.getContext().setRealm(session.realms().getRealm(message.getRealmId()));
+                }
+                try {
+                    send(session, message);
+                } catch (EmailException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof EmailException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private static RealmModel findRealm(KeycloakSession session, BrevoMessage message) throws EmailException {
+        RealmModel realm = session.getContext().getRealm();
+        if (realm == null) {
+            realm = session.realms().getRealm(message.getRealmId());
+        }
+        if (realm == null) {
+            throw new EmailException("Realm " + message.getRealmId() + " not found for SMTP fallback");
+        }
+        return realm;
+    }
+}
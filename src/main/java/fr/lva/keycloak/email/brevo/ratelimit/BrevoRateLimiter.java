@@ -0,0 +1,57 @@
+package fr.lva.keycloak.email.brevo.ratelimit;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side throttling of the Brevo API calls, so bursts are smoothed under the
+ * account quota instead of being answered with 429.
+ */
+public interface BrevoRateLimiter {
+
+    /**
+     * Limiter letting every call through
+     */
+    BrevoRateLimiter UNLIMITED = maxWaitNanos -> true;
+
+    /**
+     * Take a permit for one Brevo call, waiting for it if needed
+     *
+     * @param maxWaitNanos maximum time to wait for a permit
+     * @return false if no permit is available within the maximum wait
+     */
+    boolean acquire(long maxWaitNanos) throws InterruptedException;
+
+    /**
+     * Stop the threads of the limiter, if any
+     */
+    default void close() {
+        // Nothing to close
+    }
+
+    /**
+     * Build the limiter from the provider configuration
+     *
+     * @param sessionFactory used to share the budget between the cluster nodes
+     */
+    static BrevoRateLimiter fromConfig(Config.Scope config, KeycloakSessionFactory sessionFactory) {
+        int rate = config.getInt("brevoRateLimit", 0);
+        if (rate <= 0) {
+            return UNLIMITED;
+        }
+        TokenBucketRateLimiter local = new TokenBucketRateLimiter(rate, config.getInt("brevoRateBurst", rate));
+        if (!config.getBoolean("brevoRateCluster", false)) {
+            return local;
+        }
+        return new ClusterRateLimiter(local,
+                new SingleUseObjectLeaseStore(sessionFactory),
+                rate,
+                config.getInt("brevoRateClusterChunk", 10));
+    }
+
+    static long defaultMaxWaitNanos(Config.Scope config) {
+        return TimeUnit.MILLISECONDS.toNanos(config.getLong("brevoRateMaxWait", 1000L));
+    }
+}
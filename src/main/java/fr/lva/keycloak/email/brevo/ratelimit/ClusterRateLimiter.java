@@ -0,0 +1,207 @@
+package fr.lva.keycloak.email.brevo.ratelimit;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rate limiter sharing the Brevo budget between the cluster nodes.
+ * <p>
+ * The budget of each second is split in chunks. A node leases a chunk through the
+ * {@link LeaseStore} when it runs out of permits, then consumes it locally without
+ * any coordination. Permits left unused are kept until the end of the next second.
+ * Calls are also smoothed by a local {@link TokenBucketRateLimiter}.
+ * <p>
+ * A single lease runs at a time, the other callers wait for its outcome. Non blocking
+ * callers ({@code maxWaitNanos} of 0) never call the store themselves, the lease runs
+ * in the background and they try again later.
+ */
+public class ClusterRateLimiter implements BrevoRateLimiter {
+
+    private static final Logger LOG = Logger.getLogger(ClusterRateLimiter.class);
+
+    private static final int COUNT_BITS = 20;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final BrevoRateLimiter local;
+    private final LeaseStore leaseStore;
+    private final int permitsPerSecond;
+    private final int chunkSize;
+    private final int chunksPerSecond;
+    // Second of the last lease in the high bits, permits left in the low bits
+    private final AtomicLong lease = new AtomicLong();
+    // Lease in progress, null if none
+    private final AtomicReference<CompletableFuture<Boolean>> leasing = new AtomicReference<>();
+    private final ExecutorService leaseExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "brevo-rate-lease");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long exhaustedSecond = -1;
+
+    public ClusterRateLimiter(BrevoRateLimiter local, LeaseStore leaseStore, int permitsPerSecond, int chunkSize) {
+        this.local = local;
+        this.leaseStore = leaseStore;
+        this.permitsPerSecond = Math.max(1, permitsPerSecond);
+        this.chunkSize = (int) Math.min(Math.max(1, Math.min(chunkSize, this.permitsPerSecond)), COUNT_MASK);
+        this.chunksPerSecond = (this.permitsPerSecond + this.chunkSize - 1) / this.chunkSize;
+    }
+
+    @Override
+    public boolean acquire(long maxWaitNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (true) {
+            long second = System.currentTimeMillis() / 1000;
+            long leaseSecond = takePermit(second);
+            if (leaseSecond >= 0) {
+                if (local.acquire(Math.max(0, deadline - System.nanoTime()))) {
+                    return true;
+                }
+                refund(leaseSecond);
+                return false;
+            }
+
+            if (exhaustedSecond != second) {
+                CompletableFuture<Boolean> leased = leaseChunk(second, maxWaitNanos > 0);
+                if (leased.isDone() || awaitLease(leased, deadline)) {
+                    // Leased or not, look at the permits again
+                    continue;
+                }
+                return false;
+            }
+
+            // Cluster budget of this second is spent, wait for the next one
+            long untilNextSecond = TimeUnit.MILLISECONDS.toNanos(1000 - System.currentTimeMillis() % 1000);
+            if (System.nanoTime() + untilNextSecond > deadline) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(untilNextSecond);
+        }
+    }
+
+    /**
+     * @return second of the lease the permit was taken from, -1 if no permit is left
+     */
+    private long takePermit(long second) {
+        while (true) {
+            long current = lease.get();
+            long leaseSecond = current >>> COUNT_BITS;
+            if ((current & COUNT_MASK) == 0 || second - leaseSecond > 1) {
+                return -1;
+            }
+            if (lease.compareAndSet(current, current - 1)) {
+                return leaseSecond;
+            }
+        }
+    }
+
+    /**
+     * Give back a permit the local limiter didn't let through, unless a new lease replaced it
+     */
+    private void refund(long leaseSecond) {
+        lease.getAndUpdate(current -> current >>> COUNT_BITS == leaseSecond && (current & COUNT_MASK) < COUNT_MASK
+                ? current + 1
+                : current);
+    }
+
+    /**
+     * @return false if the deadline is reached before the lease completes
+     */
+    private boolean awaitLease(CompletableFuture<Boolean> leased, long deadline) throws InterruptedException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        try {
+            leased.get(remaining, TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // Never completed exceptionally
+            return true;
+        }
+    }
+
+    /**
+     * Lease a new chunk of the given second, or join the lease already in progress
+     *
+     * @param inline run the lease on the calling thread, otherwise in the background
+     * @return completed with false if the budget of the second is spent
+     */
+    private CompletableFuture<Boolean> leaseChunk(long second, boolean inline) {
+        CompletableFuture<Boolean> leased = new CompletableFuture<>();
+        CompletableFuture<Boolean> inProgress = leasing.compareAndExchange(null, leased);
+        if (inProgress != null) {
+            return inProgress;
+        }
+        Runnable task = () -> {
+            boolean result = lease(second);
+            // Cleared first, a woken caller without permit starts a new lease
+            leasing.compareAndSet(leased, null);
+            leased.complete(result);
+        };
+        if (inline) {
+            task.run();
+        } else {
+            try {
+                leaseExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Closed
+                leasing.compareAndSet(leased, null);
+                leased.complete(false);
+            }
+        }
+        return leased;
+    }
+
+    private boolean lease(long second) {
+        if (exhaustedSecond == second) {
+            return false;
+        }
+        // Start from a random chunk to limit collisions between nodes
+        int first = ThreadLocalRandom.current().nextInt(chunksPerSecond);
+        for (int i = 0; i < chunksPerSecond; i++) {
+            int chunk = (first + i) % chunksPerSecond;
+            try {
+                if (leaseStore.tryLease("brevo-rate:" + second + ":" + chunk, 2)) {
+                    addPermits(second, chunkPermits(chunk));
+                    return true;
+                }
+            } catch (RuntimeException e) {
+                // Don't block emails if the cluster store is unavailable
+                LOG.warn("Failed to lease Brevo rate limit budget, using local limit only", e);
+                addPermits(second, chunkSize);
+                return true;
+            }
+        }
+        exhaustedSecond = second;
+        return false;
+    }
+
+    // The last chunk holds what is left of the rate
+    private int chunkPermits(int chunk) {
+        return chunk == chunksPerSecond - 1 ? permitsPerSecond - chunk * chunkSize : chunkSize;
+    }
+
+    private void addPermits(long second, int permits) {
+        lease.getAndUpdate(current -> {
+            long left = second - (current >>> COUNT_BITS) > 1 ? 0 : current & COUNT_MASK;
+            return (second << COUNT_BITS) | Math.min(COUNT_MASK, left + permits);
+        });
+    }
+
+    @Override
+    public void close() {
+        leaseExecutor.shutdownNow();
+    }
+}
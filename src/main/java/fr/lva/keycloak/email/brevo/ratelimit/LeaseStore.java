@@ -0,0 +1,16 @@
+package fr.lva.keycloak.email.brevo.ratelimit;
+
+/**
+ * Cluster-wide store of rate limit leases
+ */
+public interface LeaseStore {
+
+    /**
+     * Take a lease if nobody holds it yet
+     *
+     * @param key             lease key
+     * @param lifespanSeconds time after which the lease is released
+     * @return true if the lease has been taken by the caller
+     */
+    boolean tryLease(String key, long lifespanSeconds);
+}
@@ -0,0 +1,21 @@
+package fr.lva.keycloak.email.brevo.ratelimit;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory {@link LeaseStore}, stand-in for the cluster store on a single node
+ */
+public class LocalLeaseStore implements LeaseStore {
+
+    private final Map<String, Long> leases = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean tryLease(String key, long lifespanSeconds) {
+        long now = System.nanoTime();
+        long expiration = now + TimeUnit.SECONDS.toNanos(lifespanSeconds);
+        leases.values().removeIf(leaseExpiration -> leaseExpiration - now <= 0);
+        return leases.putIfAbsent(key, expiration) == null;
+    }
+}
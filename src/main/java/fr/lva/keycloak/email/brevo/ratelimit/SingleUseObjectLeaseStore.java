@@ -0,0 +1,23 @@
+package fr.lva.keycloak.email.brevo.ratelimit;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Leases stored in Keycloak's {@link org.keycloak.models.SingleUseObjectProvider},
+ * replicated across the cluster by Infinispan
+ */
+public class SingleUseObjectLeaseStore implements LeaseStore {
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    public SingleUseObjectLeaseStore(KeycloakSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    @Override
+    public boolean tryLease(String key, long lifespanSeconds) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                session -> session.singleUseObjects().putIfAbsent(key, lifespanSeconds));
+    }
+}
@@ -0,0 +1,46 @@
+package fr.lva.keycloak.email.brevo.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, implemented as a generic cell rate algorithm : a single
+ * atomic holds the theoretical arrival time of the next call and each permit moves it
+ * forward by one emission interval with a CAS.
+ */
+public class TokenBucketRateLimiter implements BrevoRateLimiter {
+
+    private final long intervalNanos;
+    // How far ahead of the schedule calls may go, ie the burst size
+    private final long toleranceNanos;
+    private final AtomicLong theoreticalArrival;
+
+    /**
+     * @param permitsPerSecond sustained rate
+     * @param burst            number of calls allowed back to back
+     */
+    public TokenBucketRateLimiter(int permitsPerSecond, int burst) {
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    @Override
+    public boolean acquire(long maxWaitNanos) throws InterruptedException {
+        while (true) {
+            long now = System.nanoTime();
+            long arrival = theoreticalArrival.get();
+            long start = Math.max(arrival, now);
+            long wait = start - now - toleranceNanos;
+            if (wait > maxWaitNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, start + intervalNanos)) {
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                return true;
+            }
+        }
+    }
+}
@@ -1,38 +1,108 @@
 package fr.lva.keycloak.email.factory;
 
+import fr.lva.keycloak.email.brevo.BrevoClient;
+import fr.lva.keycloak.email.brevo.BrevoMailQueue;
+import fr.lva.keycloak.email.brevo.ratelimit.BrevoRateLimiter;
 import fr.lva.keycloak.email.provider.CustomEmailSenderProvider;
+import fr.lva.keycloak.email.routing.EmailTransportRouter;
 import org.keycloak.Config;
 import org.keycloak.email.EmailSenderProvider;
 import org.keycloak.email.EmailSenderProviderFactory;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class CustomEmailSenderProviderFactory implements EmailSenderProviderFactory {
 
     // Leave default value to surcharge default SPI
     public static final String ID = "default";
 
+    private Config.Scope config;
+    private BrevoClient brevoClient;
+    // null if asynchronous sending is disabled
+    private BrevoMailQueue mailQueue;
+    private EmailTransportRouter transportRouter;
+    // SMTP fallback of the asynchronous sends
+    private ExecutorService fallbackExecutor;
+
     @Override
     public EmailSenderProvider create(KeycloakSession session) {
-        return new CustomEmailSenderProvider(session);
+        return new CustomEmailSenderProvider(session, brevoClient, mailQueue, transportRouter, fallbackExecutor);
     }
 
     @Override
     public void init(Config.Scope config) {
+        this.config = config;
+        this.brevoClient = BrevoClient.fromConfig(config, "api-key");
+        this.transportRouter = EmailTransportRouter.fromConfig(config);
+        AtomicInteger threads = new AtomicInteger();
+        this.fallbackExecutor = Executors.newFixedThreadPool(config.getInt("brevoFallbackThreads", 2), runnable -> {
+            Thread thread = new Thread(runnable, "brevo-smtp-fallback-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // Nothing to do
+        factory.register(transportRouter);
+        brevoClient.useRateLimiter(BrevoRateLimiter.fromConfig(config, factory));
+        this.mailQueue = BrevoMailQueue.fromConfig(config, brevoClient, factory);
+        if (mailQueue != null) {
+            brevoClient.getMetrics().useQueueDepth(mailQueue::size);
+        }
     }
 
     @Override
     public void close() {
-        // Nothing to do
+        // The queue drains first, its undelivered emails still go through the SMTP fallback
+        if (mailQueue != null) {
+            brevoClient.getMetrics().useQueueDepth(() -> 0);
+            mailQueue.close();
+        }
+        if (fallbackExecutor != null) {
+            fallbackExecutor.shutdown();
+            try {
+                if (!fallbackExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    fallbackExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                fallbackExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (brevoClient != null) {
+            brevoClient.close();
+        }
     }
 
     @Override
     public String getId() {
         return ID;
     }
+
+    /**
+     * Shared Brevo client, also used by {@link CustomFreeMarkerEmailTemplateFactory}
+     */
+    public BrevoClient getBrevoClient() {
+        return brevoClient;
+    }
+
+    /**
+     * Shared client routing, also used by {@link CustomFreeMarkerEmailTemplateFactory}
+     */
+    public EmailTransportRouter getTransportRouter() {
+        return transportRouter;
+    }
+
+    /**
+     * Shared Brevo queue, null if asynchronous sending is disabled
+     */
+    public BrevoMailQueue getMailQueue() {
+        return mailQueue;
+    }
 }
\ No newline at end of file
@@ -1,12 +1,21 @@
 package fr.lva.keycloak.email.factory;
 
+import fr.lva.keycloak.email.brevo.BrevoClient;
+import fr.lva.keycloak.email.brevo.BrevoMailQueue;
+import fr.lva.keycloak.email.brevo.ratelimit.BrevoRateLimiter;
+import fr.lva.keycloak.email.provider.CachingFreeMarkerEmailTemplateProvider;
 import fr.lva.keycloak.email.provider.CustomFreeMarkerEmailTemplateProvider;
+import fr.lva.keycloak.email.routing.EmailTransport;
+import fr.lva.keycloak.email.routing.EmailTransportRouter;
+import fr.lva.keycloak.email.theme.EmailMessageCache;
+import fr.lva.keycloak.email.theme.EmailSpliceCache;
+import org.keycloak.Config;
+import org.keycloak.email.EmailSenderProvider;
 import org.keycloak.email.EmailTemplateProvider;
-import org.keycloak.email.freemarker.FreeMarkerEmailTemplateProvider;
 import org.keycloak.email.freemarker.FreeMarkerEmailTemplateProviderFactory;
-import org.keycloak.models.ClientModel;
-import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,6 +26,16 @@ public class CustomFreeMarkerEmailTemplateFactory extends FreeMarkerEmailTemplat
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    private Config.Scope config;
+    private EmailMessageCache messageCache;
+    private EmailSpliceCache spliceCache;
+    private BrevoClient brevoClient;
+    private EmailTransportRouter transportRouter;
+    // Email sender factory sharing its Brevo client and queue, null if not ours
+    private CustomEmailSenderProviderFactory senderFactory;
+    // true if the client and router have been built here and not borrowed from the email sender factory
+    private boolean ownsBrevoClient;
+
     public CustomFreeMarkerEmailTemplateFactory() {
         // Empty constructor
     }
@@ -24,29 +43,57 @@ public class CustomFreeMarkerEmailTemplateFactory extends FreeMarkerEmailTemplat
     @Override
     public EmailTemplateProvider create(KeycloakSession session) {
         // Find clientId from URI
-        if (shouldUseBrevoForCurrentClient(session)) {
-            return new CustomFreeMarkerEmailTemplateProvider(session);
+        if (transportRouter.resolve(session) == EmailTransport.BREVO) {
+            return new CustomFreeMarkerEmailTemplateProvider(session, messageCache, spliceCache, brevoClient, getMailQueue(), transportRouter);
         } else {
             logger.debug("Client is not configured : {}", session.getContext().getUri().getQueryParameters());
-            return new FreeMarkerEmailTemplateProvider(session);
+            return new CachingFreeMarkerEmailTemplateProvider(session, messageCache, spliceCache);
         }
     }
 
-    /**
-     * Check if the client use the SSO mire
-     *
-     * @return true if the client as the theme attribute configured
-     */
-    private boolean shouldUseBrevoForCurrentClient(KeycloakSession session) {
-        KeycloakContext context = session.getContext();
-        ClientModel client = context.getClient();
-        if (client == null) {
-            return false;
+    @Override
+    public void init(Config.Scope config) {
+        super.init(config);
+        this.config = config;
+        this.messageCache = EmailMessageCache.fromConfig(config);
+        this.spliceCache = EmailSpliceCache.fromConfig(config);
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        super.postInit(factory);
+        // Reuse the Brevo client, queue and routing of the email sender to share its connection pool and cache
+        ProviderFactory<EmailSenderProvider> emailSenderFactory = factory.getProviderFactory(EmailSenderProvider.class);
+        if (emailSenderFactory instanceof CustomEmailSenderProviderFactory customSenderFactory
+                && customSenderFactory.getBrevoClient() != null) {
+            this.senderFactory = customSenderFactory;
+            this.brevoClient = customSenderFactory.getBrevoClient();
+            this.transportRouter = customSenderFactory.getTransportRouter();
+        } else {
+            this.brevoClient = BrevoClient.fromConfig(config, "test");
+            this.brevoClient.useRateLimiter(BrevoRateLimiter.fromConfig(config, factory));
+            this.transportRouter = EmailTransportRouter.fromConfig(config);
+            factory.register(transportRouter);
+            this.ownsBrevoClient = true;
         }
+        messageCache.warmUp(factory,
+                EmailMessageCache.parseList(config.get("warmupThemes")),
+                EmailMessageCache.parseLocales(config.get("warmupLocales", "fr")));
+    }
 
-        String loginTheme = client.getAttribute("login_theme");
+    @Override
+    public void close() {
+        if (ownsBrevoClient && brevoClient != null) {
+            brevoClient.close();
+        }
+        super.close();
+    }
 
-        return "theme-hachette".equals(loginTheme);
+    /**
+     * Queue is built in the email sender postInit, so it is resolved lazily
+     */
+    private BrevoMailQueue getMailQueue() {
+        return senderFactory != null ? senderFactory.getMailQueue() : null;
     }
 
 }
@@ -0,0 +1,148 @@
+package fr.lva.keycloak.email.metrics;
+
+import fr.lva.keycloak.email.routing.EmailTransport;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntSupplier;
+
+/**
+ * Delivery metrics of the emails : latencies per transport and outcome, SMTP fallbacks,
+ * Brevo retries, status codes and payload sizes.
+ * <p>
+ * Registered in the Micrometer global registry, exposed by Keycloak on its metrics endpoint when
+ * {@code metrics-enabled} is set. Every meter but the status counters is created up front and indexed
+ * by enum ordinal, recording doesn't allocate. A single instance is shared by the Brevo clients.
+ */
+public class EmailMetrics {
+
+    public static final String PREFIX = "keycloak.email.";
+
+    private static final Duration[] LATENCY_BOUNDS = {
+            Duration.ofMillis(5), Duration.ofMillis(10), Duration.ofMillis(25), Duration.ofMillis(50),
+            Duration.ofMillis(100), Duration.ofMillis(250), Duration.ofMillis(500), Duration.ofSeconds(1),
+            Duration.ofMillis(2500), Duration.ofSeconds(5), Duration.ofSeconds(10)};
+    private static final double[] PAYLOAD_BOUNDS_BYTES = {1024, 2048, 4096, 8192, 16384, 32768, 65536, 131072, 262144, 1048576};
+    private static final int MAX_STATUS = 600;
+
+    private static final EmailMetrics GLOBAL = new EmailMetrics(Metrics.globalRegistry);
+
+    public enum Outcome {
+        /** Accepted by the transport */
+        SENT,
+        /** Accepted by the Brevo queue, sent later */
+        QUEUED,
+        FAILED
+    }
+
+    public enum FallbackReason {
+        /** Brevo circuit breaker open */
+        UNAVAILABLE,
+        /** Brevo call failed after its retries */
+        ERROR,
+        /** Brevo queue full */
+        QUEUE_FULL
+    }
+
+    private final MeterRegistry registry;
+    private final Timer[][] latencies = new Timer[EmailTransport.values().length][Outcome.values().length];
+    private final DistributionSummary payloadSizes;
+    private final Counter[] fallbacks = new Counter[FallbackReason.values().length];
+    private final Counter retries;
+    // Created on the first response of each status, index 0 counts the statuses out of range
+    private final AtomicReferenceArray<Counter> statusCodes = new AtomicReferenceArray<>(MAX_STATUS);
+    private volatile IntSupplier queueDepth = () -> 0;
+
+    public EmailMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (EmailTransport transport : EmailTransport.values()) {
+            for (Outcome outcome : Outcome.values()) {
+                latencies[transport.ordinal()][outcome.ordinal()] = Timer.builder(PREFIX + "send")
+                        .description("Email send latency by transport and outcome")
+                        .tag("transport", name(transport))
+                        .tag("outcome", name(outcome))
+                        .serviceLevelObjectives(LATENCY_BOUNDS)
+                        .register(registry);
+            }
+        }
+        this.payloadSizes = DistributionSummary.builder(PREFIX + "brevo.payload")
+                .description("Size of the request bodies posted to Brevo")
+                .baseUnit("bytes")
+                .serviceLevelObjectives(PAYLOAD_BOUNDS_BYTES)
+                .register(registry);
+        for (FallbackReason reason : FallbackReason.values()) {
+            fallbacks[reason.ordinal()] = Counter.builder(PREFIX + "fallbacks")
+                    .description("Emails sent through SMTP after Brevo couldn't be used")
+                    .tag("reason", name(reason))
+                    .register(registry);
+        }
+        this.retries = Counter.builder(PREFIX + "brevo.retries")
+                .description("Brevo calls retried")
+                .register(registry);
+        // A previous deployment's gauge would keep reading its own queue
+        Gauge previous = registry.find(PREFIX + "brevo.queue.depth").gauge();
+        if (previous != null) {
+            registry.remove(previous);
+        }
+        Gauge.builder(PREFIX + "brevo.queue.depth", this, metrics -> metrics.queueDepth.getAsInt())
+                .description("Emails waiting in the Brevo queue")
+                .strongReference(true)
+                .register(registry);
+    }
+
+    /**
+     * Metrics shared by every Brevo client of the deployment
+     */
+    public static EmailMetrics global() {
+        return GLOBAL;
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} before sending
+     */
+    public void recordSend(EmailTransport transport, Outcome outcome, long startNanos) {
+        latencies[transport.ordinal()][outcome.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordFallback(FallbackReason reason) {
+        fallbacks[reason.ordinal()].increment();
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    public void recordStatus(int status) {
+        int index = status > 0 && status < MAX_STATUS ? status : 0;
+        Counter counter = statusCodes.get(index);
+        if (counter == null) {
+            // Same counter if two threads register it
+            counter = Counter.builder(PREFIX + "brevo.responses")
+                    .description("Brevo responses by HTTP status")
+                    .tag("status", index == 0 ? "other" : String.valueOf(index))
+                    .register(registry);
+            statusCodes.set(index, counter);
+        }
+        counter.increment();
+    }
+
+    public void recordPayloadSize(long bytes) {
+        payloadSizes.record(bytes);
+    }
+
+    public void useQueueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    private static String name(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,96 @@
+package fr.lva.keycloak.email.provider;
+
+import fr.lva.keycloak.email.routing.EmailTransport;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.UserModel;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Email sender that doesn't hold the calling thread while the email is delivered.
+ * <p>
+ * Meant for callers sending many emails at once, ex : bulk actions or event listeners.
+ * The future completes exceptionally with the {@link EmailException} of the failed delivery.
+ * Any {@link EmailSenderProvider} can be used this way through {@link #of(EmailSenderProvider)}.
+ */
+public interface AsyncEmailSenderProvider extends EmailSenderProvider {
+
+    CompletableFuture<DeliveryResult> sendAsync(Map<String, String> config,
+                                                UserModel user,
+                                                String subject,
+                                                String textBody,
+                                                String htmlBody);
+
+    CompletableFuture<DeliveryResult> sendAsync(Map<String, String> config,
+                                                String address,
+                                                String subject,
+                                                String textBody,
+                                                String htmlBody);
+
+    /**
+     * @return the provider itself if it supports asynchronous sending, otherwise an adapter
+     * sending on the calling thread and returning a completed future
+     */
+    static AsyncEmailSenderProvider of(EmailSenderProvider provider) {
+        if (provider instanceof AsyncEmailSenderProvider asyncProvider) {
+            return asyncProvider;
+        }
+        return new BlockingAdapter(provider);
+    }
+
+    class BlockingAdapter implements AsyncEmailSenderProvider {
+
+        private final EmailSenderProvider delegate;
+
+        private BlockingAdapter(EmailSenderProvider delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CompletableFuture<DeliveryResult> sendAsync(Map<String, String> config,
+                                                           UserModel user,
+                                                           String subject,
+                                                           String textBody,
+                                                           String htmlBody) {
+            try {
+                delegate.send(config, user, subject, textBody, htmlBody);
+                return CompletableFuture.completedFuture(DeliveryResult.delivered(EmailTransport.SMTP));
+            } catch (EmailException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        @Override
+        public CompletableFuture<DeliveryResult> sendAsync(Map<String, String> config,
+                                                           String address,
+                                                           String subject,
+                                                           String textBody,
+                                                           String htmlBody) {
+            try {
+                delegate.send(config, address, subject, textBody, htmlBody);
+                return CompletableFuture.completedFuture(DeliveryResult.delivered(EmailTransport.SMTP));
+            } catch (EmailException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        @Override
+        public void send(Map<String, String> config, UserModel user, String subject, String textBody, String htmlBody)
+                throws EmailException {
+            delegate.send(config, user, subject, textBody, htmlBody);
+        }
+
+        @Override
+        public void send(Map<String, String> config, String address, String subject, String textBody, String htmlBody)
+                throws EmailException {
+            delegate.send(config, address, subject, textBody, htmlBody);
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package fr.lva.keycloak.email.provider;
+
+import fr.lva.keycloak.email.theme.CachedEmailTheme;
+import fr.lva.keycloak.email.theme.EmailMessageCache;
+import fr.lva.keycloak.email.theme.EmailSpliceCache;
+import fr.lva.keycloak.email.theme.SentinelUser;
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.freemarker.FreeMarkerEmailTemplateProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.UserModel;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Freemarker provider reading the theme messages from the factory cache, and splicing
+ * the slot values of the configured templates into cached renders of identical emails
+ */
+public class CachingFreeMarkerEmailTemplateProvider extends FreeMarkerEmailTemplateProvider {
+
+    private static final Logger LOG = Logger.getLogger(CachingFreeMarkerEmailTemplateProvider.class);
+
+    private final EmailMessageCache messageCache;
+    private final EmailSpliceCache spliceCache;
+    // Resolved once per session
+    private Theme theme;
+
+    public CachingFreeMarkerEmailTemplateProvider(KeycloakSession session,
+                                                  EmailMessageCache messageCache,
+                                                  EmailSpliceCache spliceCache) {
+        super(session);
+        this.messageCache = messageCache;
+        this.spliceCache = spliceCache;
+    }
+
+    @Override
+    protected Theme getTheme() throws IOException {
+        if (theme == null) {
+            Theme emailTheme = super.getTheme();
+            // Without the theme cache each lookup loads a new theme, caching its messages would only fill the LRU
+            theme = session.theme().isCacheEnabled() ? new CachedEmailTheme(emailTheme, messageCache) : emailTheme;
+        }
+        return theme;
+    }
+
+    @Override
+    protected EmailTemplate processTemplate(String subjectKey,
+                                            List<Object> subjectAttributes,
+                                            String template,
+                                            Map<String, Object> attributes) throws EmailException {
+        if (!spliceCache.isSpliced(template) || user == null || realm == null) {
+            return super.processTemplate(subjectKey, subjectAttributes, template, attributes);
+        }
+        Theme emailTheme;
+        try {
+            emailTheme = getTheme();
+        } catch (IOException e) {
+            throw new EmailException("Failed to template email", e);
+        }
+        Map<String, String> values = spliceCache.slotValues(template, attributes);
+        if (!(emailTheme instanceof CachedEmailTheme cachedTheme) || values == null) {
+            return super.processTemplate(subjectKey, subjectAttributes, template, attributes);
+        }
+
+        KeycloakUriInfo uri = session.getContext().getUri();
+        EmailSpliceCache.Key key = spliceCache.key(cachedTheme.getDelegate(),
+                realm.getId(),
+                session.getContext().resolveLocale(user),
+                uri != null ? uri.getBaseUri().toString() : null,
+                subjectKey,
+                subjectAttributes,
+                template,
+                attributes);
+        if (key == null) {
+            return super.processTemplate(subjectKey, subjectAttributes, template, attributes);
+        }
+
+        EmailSpliceCache.Fragments fragments = spliceCache.get(key);
+        if (fragments != null) {
+            return fragments.isSpliceable()
+                    ? toEmail(fragments.apply(values))
+                    : super.processTemplate(subjectKey, subjectAttributes, template, attributes);
+        }
+
+        EmailTemplate email = super.processTemplate(subjectKey, subjectAttributes, template, new HashMap<>(attributes));
+        spliceCache.put(key, learn(subjectKey, subjectAttributes, template, attributes, email, values));
+        return email;
+    }
+
+    /**
+     * Render the email twice for sentinel users to build the splice plans
+     */
+    private EmailSpliceCache.Fragments learn(String subjectKey,
+                                             List<Object> subjectAttributes,
+                                             String template,
+                                             Map<String, Object> attributes,
+                                             EmailTemplate email,
+                                             Map<String, String> values) {
+        UserModel realUser = user;
+        try {
+            EmailSpliceCache.Fragments fragments = spliceCache.learn(template, (slotValues, variant) -> {
+                user = SentinelUser.of(realUser, variant);
+                Map<String, Object> sentinelAttributes = new HashMap<>(attributes);
+                sentinelAttributes.putAll(slotValues);
+                return toParts(super.processTemplate(subjectKey, subjectAttributes, template, sentinelAttributes));
+            }, values, toParts(email));
+            if (!fragments.isSpliceable()) {
+                LOG.warnf("Email %s is configured to be spliced but renders differently, it will always be rendered",
+                        template);
+            }
+            return fragments;
+        } catch (EmailException | RuntimeException e) {
+            LOG.debugf(e, "Failed to build the splice plan of email %s", template);
+            return EmailSpliceCache.Fragments.NOT_SPLICEABLE;
+        } finally {
+            user = realUser;
+        }
+    }
+
+    private static String[] toParts(EmailTemplate email) {
+        return new String[]{email.getSubject(), email.getTextBody(), email.getHtmlBody()};
+    }
+
+    private static EmailTemplate toEmail(String[] parts) {
+        return new EmailTemplate(parts[0], parts[1], parts[2]);
+    }
+}
@@ -1,40 +1,53 @@
 package fr.lva.keycloak.email.provider;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.lva.keycloak.email.brevo.BrevoClient;
+import fr.lva.keycloak.email.brevo.BrevoMailQueue;
+import fr.lva.keycloak.email.brevo.BrevoMessage;
+import fr.lva.keycloak.email.brevo.BrevoUnavailableException;
+import fr.lva.keycloak.email.brevo.SmtpFallback;
+import fr.lva.keycloak.email.metrics.EmailMetrics;
+import fr.lva.keycloak.email.routing.EmailTransport;
+import fr.lva.keycloak.email.routing.EmailTransportRouter;
 import org.jboss.logging.Logger;
 import org.keycloak.email.DefaultEmailSenderProvider;
 import org.keycloak.email.EmailException;
-import org.keycloak.email.EmailSenderProvider;
-import org.keycloak.models.ClientModel;
-import org.keycloak.models.KeycloakContext;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.UserModel;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.time.Duration;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
-public class CustomEmailSenderProvider implements EmailSenderProvider {
+public class CustomEmailSenderProvider implements AsyncEmailSenderProvider {
 
     private static final Logger LOG = Logger.getLogger(CustomEmailSenderProvider.class);
 
     private final KeycloakSession session;
     private final DefaultEmailSenderProvider defaultSender;
-    private final HttpClient httpClient;
-    private final ObjectMapper objectMapper;
+    private final BrevoClient brevoClient;
+    // null if asynchronous sending is disabled
+    private final BrevoMailQueue mailQueue;
+    private final EmailTransportRouter transportRouter;
+    // Runs the SMTP sends of the asynchronous path, outside of the request session
+    private final Executor fallbackExecutor;
+    private final EmailMetrics metrics;
 
-    public CustomEmailSenderProvider(KeycloakSession session) {
+    public CustomEmailSenderProvider(KeycloakSession session,
+                                     BrevoClient brevoClient,
+                                     BrevoMailQueue mailQueue,
+                                     EmailTransportRouter transportRouter,
+                                     Executor fallbackExecutor) {
         this.session = session;
         this.defaultSender = new DefaultEmailSenderProvider(session);
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(5))
-                .build();
-        this.objectMapper = new ObjectMapper();
+        this.brevoClient = brevoClient;
+        this.mailQueue = mailQueue;
+        this.transportRouter = transportRouter;
+        this.fallbackExecutor = fallbackExecutor;
+        this.metrics = brevoClient.getMetrics();
     }
 
     @Override
@@ -44,17 +57,32 @@ public class CustomEmailSenderProvider implements EmailSenderProvider {
                      String textBody,
                      String htmlBody) throws EmailException {
 
-        if (shouldUseBrevoForCurrentClient()) {
+        if (transportRouter.resolve(session) == EmailTransport.BREVO) {
             LOG.debugf("Using Brevo API for user %s, subject=%s", user.getEmail(), subject);
+            long start = System.nanoTime();
             try {
-                sendViaBrevo(config, user, subject, textBody, htmlBody);
+                if (sendViaBrevo(config, user, subject, textBody, htmlBody)) {
+                    metrics.recordSend(EmailTransport.BREVO,
+                            mailQueue != null ? EmailMetrics.Outcome.QUEUED : EmailMetrics.Outcome.SENT, start);
+                    return;
+                }
+                // Queue full, counted by the queue
+            } catch (BrevoMailQueue.QueueFullException e) {
+                metrics.recordSend(EmailTransport.BREVO, EmailMetrics.Outcome.FAILED, start);
+                throw e;
+            } catch (BrevoUnavailableException e) {
+                LOG.debug("Brevo circuit breaker is open, using default SMTP");
+                metrics.recordSend(EmailTransport.BREVO, EmailMetrics.Outcome.FAILED, start);
+                metrics.recordFallback(EmailMetrics.FallbackReason.UNAVAILABLE);
             } catch (Exception e) {
                 LOG.error("Failed to send email via Brevo, falling back to default SMTP", e);
-                // fallback SMTP Keycloak
-                defaultSender.send(config, user, subject, textBody, htmlBody);
+                metrics.recordSend(EmailTransport.BREVO, EmailMetrics.Outcome.FAILED, start);
+                metrics.recordFallback(EmailMetrics.FallbackReason.ERROR);
             }
+            // fallback SMTP Keycloak
+            sendViaSmtp(config, user.getEmail(), subject, textBody, htmlBody);
         } else {
-            defaultSender.send(config, user, subject, textBody, htmlBody);
+            sendViaSmtp(config, user.getEmail(), subject, textBody, htmlBody);
         }
     }
 
@@ -64,113 +92,165 @@ public class CustomEmailSenderProvider implements EmailSenderProvider {
                      String subject,
                      String textBody,
                      String htmlBody) throws EmailException {
-        defaultSender.send(config, address, subject, textBody, htmlBody);
+        sendViaSmtp(config, address, subject, textBody, htmlBody);
     }
 
     @Override
-    public void close() {
-        // Nothing to do
+    public CompletableFuture<DeliveryResult> sendAsync(Map<String, String> config,
+                                                       UserModel user,
+                                                       String subject,
+                                                       String textBody,
+                                                       String htmlBody) {
+        BrevoMessage message = buildMessage(config, user.getEmail(), subject, textBody, htmlBody);
+        if (transportRouter.resolve(session) != EmailTransport.BREVO) {
+            return sendViaSmtpAsync(message);
+        }
+        try {
+            long start = System.nanoTime();
+            if (mailQueue != null) {
+                if (mailQueue.enqueue(message)) {
+                    metrics.recordSend(EmailTransport.BREVO, EmailMetrics.Outcome.QUEUED, start);
+                    return CompletableFuture.completedFuture(DeliveryResult.queued());
+                }
+                return sendViaSmtpAsync(message);
+            }
+            LOG.debugf("Using Brevo API asynchronously for user %s, subject=%s", user.getEmail(), subject);
+            KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+            return brevoClient.sendWithRetryAsync(message)
+                    .thenApply(ignored -> {
+                        metrics.recordSend(EmailTransport.BREVO, EmailMetrics.Outcome.SENT, start);
+                        return DeliveryResult.delivered(EmailTransport.BREVO);
+                    })
+                    .exceptionallyComposeAsync(error -> {
+                        metrics.recordSend(EmailTransport.BREVO, EmailMetrics.Outcome.FAILED, start);
+                        return fallback(sessionFactory, message, BrevoClient.unwrap(error));
+                    }, fallbackExecutor);
+        } catch (EmailException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<DeliveryResult> sendAsync(Map<String, String> config,
+                                                       String address,
+                                                       String subject,
+                                                       String textBody,
+                                                       String htmlBody) {
+        return sendViaSmtpAsync(buildMessage(config, address, subject, textBody, htmlBody));
     }
 
     /**
-     * Check if the client use the SSO mire
-     * @return true if the client as the theme attribute configured
+     * SMTP send on the fallback threads, the request session may be closed meanwhile
      */
-    private boolean shouldUseBrevoForCurrentClient() {
-        KeycloakContext context = session.getContext();
-        ClientModel client = context.getClient();
-        if (client == null) {
-            return false;
+    private CompletableFuture<DeliveryResult> sendViaSmtpAsync(BrevoMessage message) {
+        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return sendViaSmtp(sessionFactory, message);
+                } catch (EmailException e) {
+                    throw new CompletionException(e);
+                }
+            }, fallbackExecutor);
+        } catch (RejectedExecutionException e) {
+            // Provider closed
+            return CompletableFuture.failedFuture(new EmailException("SMTP sender is closed", e));
         }
+    }
+
+    /**
+     * SMTP fallback of a failed asynchronous send, the request session may be closed meanwhile
+     */
+    private CompletableFuture<DeliveryResult> fallback(KeycloakSessionFactory sessionFactory,
+                                                       BrevoMessage message,
+                                                       Throwable cause) {
+        if (cause instanceof BrevoUnavailableException) {
+            LOG.debug("Brevo circuit breaker is open, using default SMTP");
+            metrics.recordFallback(EmailMetrics.FallbackReason.UNAVAILABLE);
+        } else {
+            LOG.error("Failed to send email via Brevo, falling back to default SMTP", cause);
+            metrics.recordFallback(EmailMetrics.FallbackReason.ERROR);
+        }
+        try {
+            return CompletableFuture.completedFuture(sendViaSmtp(sessionFactory, message));
+        } catch (EmailException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private DeliveryResult sendViaSmtp(KeycloakSessionFactory sessionFactory, BrevoMessage message) throws EmailException {
+        long start = System.nanoTime();
+        try {
+            SmtpFallback.sendInNewSession(sessionFactory, message);
+        } catch (EmailException | RuntimeException e) {
+            metrics.recordSend(EmailTransport.SMTP, EmailMetrics.Outcome.FAILED, start);
+            throw e;
+        }
+        metrics.recordSend(EmailTransport.SMTP, EmailMetrics.Outcome.SENT, start);
+        return DeliveryResult.delivered(EmailTransport.SMTP);
+    }
 
-        String loginTheme = client.getAttribute("login_theme");
+    private void sendViaSmtp(Map<String, String> config,
+                             String address,
+                             String subject,
+                             String textBody,
+                             String htmlBody) throws EmailException {
+        long start = System.nanoTime();
+        try {
+            defaultSender.send(config, address, subject, textBody, htmlBody);
+        } catch (EmailException | RuntimeException e) {
+            metrics.recordSend(EmailTransport.SMTP, EmailMetrics.Outcome.FAILED, start);
+            throw e;
+        }
+        metrics.recordSend(EmailTransport.SMTP, EmailMetrics.Outcome.SENT, start);
+    }
 
-        return "theme-hachette".equals(loginTheme);
+    @Override
+    public void close() {
+        // Nothing to do
     }
 
-    private void sendViaBrevo(Map<String, String> config,
+    /**
+     * Send the email through Brevo, or queue it if asynchronous sending is enabled
+     *
+     * @return false if the queue is full and the email must be sent through SMTP
+     */
+    private boolean sendViaBrevo(Map<String, String> config,
                               UserModel user,
                               String subject,
                               String textBody,
                               String htmlBody) throws IOException, InterruptedException, EmailException {
 
-        String brevoApiKey    = "api-key";
+        BrevoMessage message = buildMessage(config, user.getEmail(), subject, textBody, htmlBody);
+
+        if (mailQueue == null) {
+            brevoClient.sendWithRetry(message);
+            return true;
+        }
+        return mailQueue.enqueue(message);
+    }
+
+    private BrevoMessage buildMessage(Map<String, String> config,
+                                      String recipient,
+                                      String subject,
+                                      String textBody,
+                                      String htmlBody) {
+
         String brevoSender    = "no-reply@kiosque-edu.com";  // ex: no-reply@hachette.fr
         String brevoSenderName= "Hachette Livre";
-        //String templateIdStr  = getRequired(config, "brevo.template-id");   // ex: "42"
-        //int templateId        = Integer.parseInt(templateIdStr);
 
-        Map<String, Object> body = buildBrevoPayload(
-                // templateId,
+        return new BrevoMessage(
+                session.getContext().getRealm() != null ? session.getContext().getRealm().getId() : null,
+                config,
                 brevoSender,
                 brevoSenderName,
-                user,
+                recipient,
                 subject,
+                // Brevo requires an htmlContent, the text body stands in for templates without html part
+                htmlBody != null ? htmlBody : textBody,
                 textBody,
                 htmlBody
         );
-
-        String json = objectMapper.writeValueAsString(body);
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://api.brevo.com/v3/smtp/email"))
-                .header("Content-Type", "application/json")
-                .header("accept", "application/json")
-                .header("api-key", brevoApiKey)
-                .timeout(Duration.ofSeconds(10))
-                .POST(HttpRequest.BodyPublishers.ofString(json))
-                .build();
-
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-
-        int status = response.statusCode();
-        if (status < 200 || status >= 300) {
-            throw new EmailException("Brevo API call failed with status " + status);
-        }
-    }
-
-    private Map<String, Object> buildBrevoPayload(//int templateId,
-                                                  String senderEmail,
-                                                  String senderName,
-                                                  UserModel user,
-                                                  String subject,
-                                                  String textBody,
-                                                  String htmlBody) {
-
-        Map<String, Object> root = new HashMap<>();
-
-        // sender
-        Map<String, Object> sender = new HashMap<>();
-        sender.put("email", senderEmail);
-        sender.put("name", senderName);
-        root.put("sender", sender);
-
-        // destinataire
-        Map<String, Object> toRecipient = new HashMap<>();
-        toRecipient.put("email", user.getEmail());
-        //toRecipient.put("name", user.getFirstName() != null ? user.getFirstName() : user.getUsername());
-        root.put("to", java.util.List.of(toRecipient));
-
-        // template
-        //root.put("templateId", templateId);
-
-        // subject optionnel (peut tre overrid par le template)
-        root.put("subject", subject);
-        root.put("htmlContent", textBody);
-
-        // params = variables utilisables dans le template, ex {{ params.firstName }}
-       /* Map<String, Object> params = new HashMap<>();
-        params.put("username", user.getUsername());
-        params.put("firstName", user.getFirstName());
-        params.put("lastName", user.getLastName());
-        params.put("email", user.getEmail());
-        params.put("kcSubject", subject);
-        params.put("kcTextBody", textBody);
-        params.put("kcHtmlBody", htmlBody);
-
-        root.put("params", params);*/
-
-        return root;
     }
 
 }
@@ -1,38 +1,57 @@
 package fr.lva.keycloak.email.provider;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.lva.keycloak.email.brevo.BrevoClient;
+import fr.lva.keycloak.email.brevo.BrevoMailQueue;
+import fr.lva.keycloak.email.brevo.BrevoMessage;
+import fr.lva.keycloak.email.brevo.BrevoTemplate;
+import fr.lva.keycloak.email.brevo.BrevoUnavailableException;
+import fr.lva.keycloak.email.brevo.SmtpFallback;
+import fr.lva.keycloak.email.metrics.EmailMetrics;
+import fr.lva.keycloak.email.routing.EmailTransport;
+import fr.lva.keycloak.email.routing.EmailTransportRouter;
+import fr.lva.keycloak.email.theme.EmailMessageCache;
+import fr.lva.keycloak.email.theme.EmailSpliceCache;
 import org.keycloak.email.EmailException;
-import org.keycloak.email.freemarker.FreeMarkerEmailTemplateProvider;
 import org.keycloak.models.KeycloakSession;
-import org.keycloak.models.UserModel;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Custom Freemarker provider to send email
  */
-public class CustomFreeMarkerEmailTemplateProvider extends FreeMarkerEmailTemplateProvider {
-
-    private final HttpClient httpClient;
-    private final ObjectMapper objectMapper;
-
-    public CustomFreeMarkerEmailTemplateProvider(KeycloakSession session) {
-        super(session);
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(5))
-                .build();
-        this.objectMapper = new ObjectMapper();
+public class CustomFreeMarkerEmailTemplateProvider extends CachingFreeMarkerEmailTemplateProvider {
+
+    private static final String BREVO_SENDER = "no-reply@kiosque-edu.com";  // ex: no-reply@hachette.fr
+    private static final String BREVO_SENDER_NAME = "Hachette Livre";
+
+    private final BrevoClient brevoClient;
+    // null if asynchronous sending is disabled
+    private final BrevoMailQueue mailQueue;
+    // Caches the Brevo template ids of the client
+    private final EmailTransportRouter transportRouter;
+
+    public CustomFreeMarkerEmailTemplateProvider(KeycloakSession session,
+                                                 EmailMessageCache messageCache,
+                                                 EmailSpliceCache spliceCache,
+                                                 BrevoClient brevoClient,
+                                                 BrevoMailQueue mailQueue,
+                                                 EmailTransportRouter transportRouter) {
+        super(session, messageCache, spliceCache);
+        this.brevoClient = brevoClient;
+        this.mailQueue = mailQueue;
+        this.transportRouter = transportRouter;
     }
 
     @Override
     public void sendPasswordReset(String link, long expirationInMinutes) throws EmailException {
+        if (hasBrevoTemplate("password-reset.ftl")) {
+            super.sendPasswordReset(link, expirationInMinutes);
+            return;
+        }
         try {
             sendViaBrevo("Réinitialiser le mot de passe", """
                     Quelqu'un vient de demander une réinitialisation de mot de passe pour votre compte Hachette Livre.
@@ -45,6 +64,10 @@ public class CustomFreeMarkerEmailTemplateProvider extends FreeMarkerEmailTempla
 
     @Override
     public void sendVerifyEmail(String link, long expirationInMinutes) throws EmailException {
+            if (hasBrevoTemplate("email-verification.ftl")) {
+                super.sendVerifyEmail(link, expirationInMinutes);
+                return;
+            }
             try {
                 sendViaBrevo("Vérification de l'email", """
                     Quelqu'un vient de créer un compte Hachette Livre avec votre e-mail.
@@ -55,85 +78,121 @@ public class CustomFreeMarkerEmailTemplateProvider extends FreeMarkerEmailTempla
             }
     }
 
-    private void sendViaBrevo(String subject,
-                              String htmlBody) throws IOException, InterruptedException, EmailException {
-
-        String brevoApiKey = "test";
-        String brevoSender = "no-reply@kiosque-edu.com";  // ex: no-reply@hachette.fr
-        String brevoSenderName = "Hachette Livre";
-        //String templateIdStr  = getRequired(config, "brevo.template-id");   // ex: "42"
-        //int templateId        = Integer.parseInt(templateIdStr);
-
-        Map<String, Object> body = buildBrevoPayload(
-                // templateId,
-                brevoSender,
-                brevoSenderName,
-                user,
-                subject,
-                htmlBody
-        );
+    /**
+     * Emails mapped to a Brevo template are sent with their attributes as params, without FreeMarker rendering
+     */
+    @Override
+    protected void send(String subjectFormatKey,
+                        List<Object> subjectAttributes,
+                        String template,
+                        Map<String, Object> attributes,
+                        String address) throws EmailException {
+        Long templateId = transportRouter.findTemplateId(session, template);
+        if (templateId == null) {
+            super.send(subjectFormatKey, subjectAttributes, template, attributes, address);
+            return;
+        }
 
-        String json = objectMapper.writeValueAsString(body);
+        List<String> subjectParams = new ArrayList<>();
+        subjectAttributes.forEach(attribute -> subjectParams.add(String.valueOf(attribute)));
+        BrevoTemplate brevoTemplate = new BrevoTemplate(templateId, template, subjectFormatKey, subjectParams,
+                templateParams(attributes), user.getId());
+        try {
+            sendViaBrevo(new BrevoMessage(
+                    realm.getId(),
+                    null,
+                    BREVO_SENDER,
+                    BREVO_SENDER_NAME,
+                    address != null ? address : user.getEmail(),
+                    null,
+                    null,
+                    null,
+                    null,
+                    brevoTemplate
+            ));
+        } catch (IOException | InterruptedException e) {
+            throw new EmailException(e);
+        }
+    }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://api.brevo.com/v3/smtp/email"))
-                .header("Content-Type", "application/json; charset=UTF-8")
-                .header("accept", "application/json")
-                .header("api-key", brevoApiKey)
-                .timeout(Duration.ofSeconds(10))
-                .POST(HttpRequest.BodyPublishers.ofString(json))
-                .build();
+    private boolean hasBrevoTemplate(String template) {
+        return transportRouter.findTemplateId(session, template) != null;
+    }
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    /**
+     * Plain attributes of the email and user profile, usable as {{ params.xxx }} in the Brevo template
+     */
+    private Map<String, String> templateParams(Map<String, Object> attributes) {
+        Map<String, String> params = new HashMap<>();
+        attributes.forEach((name, value) -> {
+            if (value instanceof CharSequence || value instanceof Number || value instanceof Boolean) {
+                params.put(name, value.toString());
+            }
+        });
+        params.put("realmName", getRealmName());
+        params.put("locale", session.getContext().resolveLocale(user).toLanguageTag());
+        putIfNotNull(params, "username", user.getUsername());
+        putIfNotNull(params, "email", user.getEmail());
+        putIfNotNull(params, "firstName", user.getFirstName());
+        putIfNotNull(params, "lastName", user.getLastName());
+        return params;
+    }
 
-        int status = response.statusCode();
-        if (status < 200 || status >= 300) {
-            throw new EmailException("Brevo API call failed with status " + status);
+    private static void putIfNotNull(Map<String, String> params, String name, String value) {
+        if (value != null) {
+            params.putIfAbsent(name, value);
         }
     }
 
-    private Map<String, Object> buildBrevoPayload(//int templateId,
-                                                  String senderEmail,
-                                                  String senderName,
-                                                  UserModel user,
-                                                  String subject,
-                                                  String htmlBody) {
-
-        Map<String, Object> root = new HashMap<>();
-
-        // sender
-        Map<String, Object> sender = new HashMap<>();
-        sender.put("email", senderEmail);
-        sender.put("name", senderName);
-        root.put("sender", sender);
-
-        // destinataire
-        Map<String, Object> toRecipient = new HashMap<>();
-        toRecipient.put("email", user.getEmail());
-        //toRecipient.put("name", user.getFirstName() != null ? user.getFirstName() : user.getUsername());
-        root.put("to", java.util.List.of(toRecipient));
-
-        // template
-        //root.put("templateId", templateId);
-
-        // subject optionnel (peut être overridé par le template)
-        root.put("subject", subject);
-        root.put("htmlContent", htmlBody);
-
-        // params = variables utilisables dans le template, ex {{ params.firstName }}
-       /* Map<String, Object> params = new HashMap<>();
-        params.put("username", user.getUsername());
-        params.put("firstName", user.getFirstName());
-        params.put("lastName", user.getLastName());
-        params.put("email", user.getEmail());
-        params.put("kcSubject", subject);
-        params.put("kcTextBody", textBody);
-        params.put("kcHtmlBody", htmlBody);
-
-        root.put("params", params);*/
-
-        return root;
+    private void sendViaBrevo(String subject,
+                              String htmlBody) throws IOException, InterruptedException, EmailException {
+        sendViaBrevo(new BrevoMessage(
+                realm.getId(),
+                null,
+                BREVO_SENDER,
+                BREVO_SENDER_NAME,
+                user.getEmail(),
+                subject,
+                htmlBody,
+                null,
+                htmlBody
+        ));
     }
 
+    private void sendViaBrevo(BrevoMessage message) throws IOException, InterruptedException, EmailException {
+        EmailMetrics metrics = brevoClient.getMetrics();
+        long start = System.nanoTime();
+        if (mailQueue == null) {
+            try {
+                brevoClient.sendWithRetry(message);
+                metrics.recordSend(EmailTransport.BREVO, EmailMetrics.Outcome.SENT, start);
+            } catch (BrevoUnavailableException e) {
+                // Brevo is unhealthy, don't make the user wait for it
+                metrics.recordSend(EmailTransport.BREVO, EmailMetrics.Outcome.FAILED, start);
+                metrics.recordFallback(EmailMetrics.FallbackReason.UNAVAILABLE);
+                sendViaSmtp(message);
+            } catch (IOException | InterruptedException | EmailException | RuntimeException e) {
+                metrics.recordSend(EmailTransport.BREVO, EmailMetrics.Outcome.FAILED, start);
+                throw e;
+            }
+        } else if (mailQueue.enqueue(message)) {
+            metrics.recordSend(EmailTransport.BREVO, EmailMetrics.Outcome.QUEUED, start);
+        } else {
+            // Queue is full, counted by the queue
+            sendViaSmtp(message);
+        }
+    }
+
+    private void sendViaSmtp(BrevoMessage message) throws EmailException {
+        EmailMetrics metrics = brevoClient.getMetrics();
+        long start = System.nanoTime();
+        try {
+            SmtpFallback.send(session, message);
+        } catch (EmailException | RuntimeException e) {
+            metrics.recordSend(EmailTransport.SMTP, EmailMetrics.Outcome.FAILED, start);
+            throw e;
+        }
+        metrics.recordSend(EmailTransport.SMTP, EmailMetrics.Outcome.SENT, start);
+    }
 
 }
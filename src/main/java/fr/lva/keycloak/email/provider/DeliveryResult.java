@@ -0,0 +1,48 @@
+package fr.lva.keycloak.email.provider;
+
+import fr.lva.keycloak.email.routing.EmailTransport;
+
+/**
+ * Outcome of an email accepted by an {@link AsyncEmailSenderProvider}
+ */
+public final class DeliveryResult {
+
+    private static final DeliveryResult BREVO = new DeliveryResult(EmailTransport.BREVO, false);
+    private static final DeliveryResult SMTP = new DeliveryResult(EmailTransport.SMTP, false);
+    private static final DeliveryResult QUEUED = new DeliveryResult(EmailTransport.BREVO, true);
+
+    private final EmailTransport transport;
+    private final boolean queued;
+
+    private DeliveryResult(EmailTransport transport, boolean queued) {
+        this.transport = transport;
+        this.queued = queued;
+    }
+
+    /**
+     * Email handed over to the transport
+     */
+    public static DeliveryResult delivered(EmailTransport transport) {
+        return transport == EmailTransport.BREVO ? BREVO : SMTP;
+    }
+
+    /**
+     * Email accepted by the Brevo queue, it is sent later
+     */
+    public static DeliveryResult queued() {
+        return QUEUED;
+    }
+
+    public EmailTransport getTransport() {
+        return transport;
+    }
+
+    public boolean isQueued() {
+        return queued;
+    }
+
+    @Override
+    public String toString() {
+        return queued ? "QUEUED" : transport.name();
+    }
+}
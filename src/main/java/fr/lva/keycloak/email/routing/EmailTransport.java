@@ -0,0 +1,11 @@
+package fr.lva.keycloak.email.routing;
+
+/**
+ * Transport used to deliver the emails of a client
+ */
+public enum EmailTransport {
+    /** Brevo transactional API */
+    BREVO,
+    /** Keycloak default SMTP sender */
+    SMTP
+}
@@ -0,0 +1,123 @@
+package fr.lva.keycloak.email.routing;
+
+import fr.lva.keycloak.email.brevo.BrevoTemplate;
+import org.keycloak.Config;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.provider.ProviderEventListener;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per client email transport decision and Brevo template ids, shared by the email factories.
+ * <p>
+ * The decision is read once from the client and realm attributes and kept in an immutable table
+ * keyed by client id, replaced on write. Entries are dropped when the client is updated
+ * or removed on this node, and expire after a TTL to catch updates made on other nodes
+ * and to the realm attributes.
+ */
+public class EmailTransportRouter implements ProviderEventListener {
+
+    private static final String LOGIN_THEME_ATTRIBUTE = "login_theme";
+
+    private final String brevoTheme;
+    private final long ttlNanos;
+    private volatile Map<String, Route> routes = Map.of();
+
+    public EmailTransportRouter(String brevoTheme, long ttlSeconds) {
+        this.brevoTheme = brevoTheme;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    public static EmailTransportRouter fromConfig(Config.Scope config) {
+        return new EmailTransportRouter(
+                config.get("brevoTheme", "theme-hachette"),
+                config.getLong("brevoRoutingCacheTtl", 300L)
+        );
+    }
+
+    /**
+     * Transport of the client of the current request, SMTP if there is no client
+     */
+    public EmailTransport resolve(KeycloakSession session) {
+        ClientModel client = session.getContext().getClient();
+        if (client == null) {
+            return EmailTransport.SMTP;
+        }
+        return route(session, client).transport;
+    }
+
+    /**
+     * Brevo template mapped to a Keycloak template for the client of the current request
+     *
+     * @param template Keycloak template, ex : password-reset.ftl
+     * @return null if the email must be rendered by Keycloak
+     */
+    public Long findTemplateId(KeycloakSession session, String template) {
+        ClientModel client = session.getContext().getClient();
+        if (client == null) {
+            return BrevoTemplate.findId(null, session.getContext().getRealm(), template);
+        }
+        return route(session, client).templateIds.get(BrevoTemplate.type(template));
+    }
+
+    private Route route(KeycloakSession session, ClientModel client) {
+        Route route = routes.get(client.getId());
+        long now = System.nanoTime();
+        if (route != null && now - route.expiresAt < 0) {
+            return route;
+        }
+
+        // Check if the client use the SSO mire
+        EmailTransport transport = brevoTheme.equals(client.getAttribute(LOGIN_THEME_ATTRIBUTE))
+                ? EmailTransport.BREVO
+                : EmailTransport.SMTP;
+        route = new Route(transport, BrevoTemplate.findIds(client, session.getContext().getRealm()), now + ttlNanos);
+        update(client.getId(), route);
+        return route;
+    }
+
+    @Override
+    public void onEvent(ProviderEvent event) {
+        if (event instanceof ClientModel.ClientUpdatedEvent updated) {
+            update(updated.getUpdatedClient().getId(), null);
+        } else if (event instanceof ClientModel.ClientRemovedEvent removed) {
+            update(removed.getClient().getId(), null);
+        } else if (event instanceof RealmModel.RealmRemovedEvent) {
+            routes = Map.of();
+        }
+    }
+
+    /**
+     * Publish a new table with the given route, removed if null
+     */
+    private synchronized void update(String clientId, Route route) {
+        Map<String, Route> copy = new HashMap<>(routes);
+        if (route == null) {
+            if (copy.remove(clientId) == null) {
+                return;
+            }
+        } else {
+            copy.put(clientId, route);
+        }
+        routes = Map.copyOf(copy);
+    }
+
+    private static class Route {
+
+        private final EmailTransport transport;
+        // Keyed by email type, ex : password-reset
+        private final Map<String, Long> templateIds;
+        private final long expiresAt;
+
+        private Route(EmailTransport transport, Map<String, Long> templateIds, long expiresAt) {
+            this.transport = transport;
+            this.templateIds = templateIds;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
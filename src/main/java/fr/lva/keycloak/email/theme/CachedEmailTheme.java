@@ -0,0 +1,81 @@
+package fr.lva.keycloak.email.theme;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Email theme reading its message bundles from an {@link EmailMessageCache}, everything else is delegated
+ */
+public class CachedEmailTheme implements Theme {
+
+    private final Theme delegate;
+    private final EmailMessageCache cache;
+
+    public CachedEmailTheme(Theme delegate, EmailMessageCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    /**
+     * Theme loaded by Keycloak, a new instance once redeployed
+     */
+    public Theme getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public String getParentName() {
+        return delegate.getParentName();
+    }
+
+    @Override
+    public String getImportName() {
+        return delegate.getImportName();
+    }
+
+    @Override
+    public Type getType() {
+        return delegate.getType();
+    }
+
+    @Override
+    public URL getTemplate(String name) throws IOException {
+        return delegate.getTemplate(name);
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String path) throws IOException {
+        return delegate.getResourceAsStream(path);
+    }
+
+    @Override
+    public Properties getMessages(Locale locale) throws IOException {
+        return getMessages("messages", locale);
+    }
+
+    @Override
+    public Properties getMessages(String baseBundlename, Locale locale) throws IOException {
+        return cache.getMessages(delegate, baseBundlename, locale);
+    }
+
+    @Override
+    public Properties getEnhancedMessages(RealmModel realm, Locale locale) throws IOException {
+        return cache.getEnhancedMessages(delegate, realm, locale);
+    }
+
+    @Override
+    public Properties getProperties() throws IOException {
+        return delegate.getProperties();
+    }
+}
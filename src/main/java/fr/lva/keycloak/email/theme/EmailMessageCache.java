@@ -0,0 +1,148 @@
+package fr.lva.keycloak.email.theme;
+
+import fr.lva.keycloak.util.TtlLruCache;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+/**
+ * Message bundles of the email themes, resolved once per theme, realm and locale.
+ * <p>
+ * Keycloak caches the raw bundles of a theme but merges the parent locales and the realm
+ * localization texts again for each email. The merged bundles are kept here in a size
+ * bounded LRU. Entries are keyed by the theme instance, so a theme redeploy, which makes
+ * Keycloak load a new instance, never serves stale messages. They also expire after a TTL
+ * to pick up the realm localization texts updated from the admin console.
+ */
+public class EmailMessageCache {
+
+    private static final Logger LOG = Logger.getLogger(EmailMessageCache.class);
+
+    private final TtlLruCache<Key, Properties> bundles;
+
+    public EmailMessageCache(int maxSize, long ttlSeconds) {
+        this.bundles = new TtlLruCache<>(maxSize, ttlSeconds);
+    }
+
+    public static EmailMessageCache fromConfig(Config.Scope config) {
+        return new EmailMessageCache(
+                config.getInt("messagesCacheSize", 256),
+                config.getLong("messagesCacheTtl", 300L)
+        );
+    }
+
+    /**
+     * Theme messages merged with the realm localization texts
+     */
+    public Properties getEnhancedMessages(Theme theme, RealmModel realm, Locale locale) throws IOException {
+        Key key = new Key(theme, realm.getId(), null, locale);
+        Properties messages = bundles.get(key);
+        if (messages == null) {
+            messages = theme.getEnhancedMessages(realm, locale);
+            bundles.put(key, messages);
+        }
+        return messages;
+    }
+
+    public Properties getMessages(Theme theme, String bundle, Locale locale) throws IOException {
+        Key key = new Key(theme, null, bundle, locale);
+        Properties messages = bundles.get(key);
+        if (messages == null) {
+            messages = theme.getMessages(bundle, locale);
+            bundles.put(key, messages);
+        }
+        return messages;
+    }
+
+    /**
+     * Load the bundles of the realms using the given email themes, so the first emails don't pay for it
+     */
+    public void warmUp(KeycloakSessionFactory sessionFactory, List<String> themes, List<Locale> locales) {
+        if (themes.isEmpty() || locales.isEmpty()) {
+            return;
+        }
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            if (!session.theme().isCacheEnabled()) {
+                // A new theme instance is loaded on each lookup, nothing to warm
+                return;
+            }
+            for (String name : themes) {
+                try {
+                    Theme theme = session.theme().getTheme(name, Theme.Type.EMAIL);
+                    for (Locale locale : locales) {
+                        getMessages(theme, "messages", locale);
+                    }
+                    session.realms().getRealmsStream()
+                            .filter(realm -> name.equals(realm.getEmailTheme()))
+                            .forEach(realm -> locales.forEach(locale -> {
+                                try {
+                                    getEnhancedMessages(theme, realm, locale);
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            }));
+                } catch (IOException | UncheckedIOException e) {
+                    LOG.warnf(e, "Failed to warm up the messages of email theme %s", name);
+                }
+            }
+        });
+    }
+
+    public static List<String> parseList(String value) {
+        if (value == null || value.isBlank()) {
+            return List.of();
+        }
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(item -> !item.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    public static List<Locale> parseLocales(String value) {
+        return parseList(value).stream().map(Locale::forLanguageTag).collect(Collectors.toList());
+    }
+
+    private static class Key {
+
+        // Compared by identity, a redeployed theme is a new instance
+        private final Theme theme;
+        private final String realmId;
+        private final String bundle;
+        private final Locale locale;
+
+        private Key(Theme theme, String realmId, String bundle, Locale locale) {
+            this.theme = theme;
+            this.realmId = realmId;
+            this.bundle = bundle;
+            this.locale = locale;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key other)) {
+                return false;
+            }
+            return theme == other.theme
+                    && Objects.equals(realmId, other.realmId)
+                    && Objects.equals(bundle, other.bundle)
+                    && Objects.equals(locale, other.locale);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(theme), realmId, bundle, locale);
+        }
+    }
+}
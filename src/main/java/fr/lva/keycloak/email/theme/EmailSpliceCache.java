@@ -0,0 +1,243 @@
+package fr.lva.keycloak.email.theme;
+
+import fr.lva.keycloak.util.TtlLruCache;
+import org.keycloak.Config;
+import org.keycloak.email.EmailException;
+import org.keycloak.theme.Theme;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rendered emails kept as splice plans, so identical emails sent to many users are only
+ * rendered by FreeMarker once per theme, realm, locale and attributes.
+ * <p>
+ * Only the templates declared in the configuration are spliced, with their slots : the
+ * attributes holding per-email values, like the action link. Every other attribute must be a
+ * plain value, which becomes part of the key. A declared template must print its slots as is
+ * and must not read the user, a plan is only cached once it reproduces the real email and
+ * renders identically for two different sentinel users. Templates that don't splice cleanly
+ * are remembered as such and always rendered.
+ */
+public class EmailSpliceCache {
+
+    // Function object built from the locale and the theme, both part of the key
+    private static final String LINK_EXPIRATION_FORMATTER = "linkExpirationFormatter";
+
+    // Slots of each spliced template
+    private final Map<String, List<String>> templates;
+    private final TtlLruCache<Key, Fragments> fragments;
+
+    public EmailSpliceCache(Map<String, List<String>> templates, int maxSize, long ttlSeconds) {
+        this.templates = templates;
+        this.fragments = new TtlLruCache<>(maxSize, ttlSeconds);
+    }
+
+    public static EmailSpliceCache fromConfig(Config.Scope config) {
+        return new EmailSpliceCache(
+                parseTemplates(config.get("spliceTemplates")),
+                config.getInt("spliceCacheSize", 256),
+                config.getLong("messagesCacheTtl", 300L)
+        );
+    }
+
+    /**
+     * @param value comma separated templates with their slots, ex : {@code password-reset.ftl=link}
+     *              or {@code executeActions.ftl=link|code}
+     */
+    public static Map<String, List<String>> parseTemplates(String value) {
+        Map<String, List<String>> templates = new HashMap<>();
+        for (String declaration : EmailMessageCache.parseList(value)) {
+            int separator = declaration.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected template=slot, got " + declaration);
+            }
+            List<String> slots = Arrays.stream(declaration.substring(separator + 1).split("\\|"))
+                    .map(String::trim)
+                    .filter(slot -> !slot.isEmpty())
+                    .toList();
+            if (slots.isEmpty()) {
+                throw new IllegalArgumentException("No slot declared for template " + declaration);
+            }
+            templates.put(declaration.substring(0, separator).trim(), slots);
+        }
+        return templates;
+    }
+
+    public boolean isSpliced(String template) {
+        return templates.containsKey(template);
+    }
+
+    /**
+     * @return value of each slot of the template, null if one is missing, not a string or can't be spliced
+     */
+    public Map<String, String> slotValues(String template, Map<String, Object> attributes) {
+        Map<String, String> values = new HashMap<>();
+        for (String slot : templates.get(template)) {
+            if (!(attributes.get(slot) instanceof String value) || !SplicePlan.isSpliceable(value)) {
+                return null;
+            }
+            values.put(slot, value);
+        }
+        return values;
+    }
+
+    /**
+     * @param baseUri base URI of the request, used by the theme URLs
+     * @return null if an attribute other than the slots is not a plain value and the email must be rendered
+     */
+    public Key key(Theme theme,
+                   String realmId,
+                   Locale locale,
+                   String baseUri,
+                   String subjectKey,
+                   List<Object> subjectAttributes,
+                   String template,
+                   Map<String, Object> attributes) {
+        List<String> slots = templates.get(template);
+        Map<String, String> plainAttributes = new TreeMap<>();
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            String name = attribute.getKey();
+            if (slots.contains(name) || LINK_EXPIRATION_FORMATTER.equals(name)) {
+                continue;
+            }
+            if (!isPlain(attribute.getValue())) {
+                return null;
+            }
+            plainAttributes.put(name, String.valueOf(attribute.getValue()));
+        }
+        for (Object subjectAttribute : subjectAttributes) {
+            if (!isPlain(subjectAttribute)) {
+                return null;
+            }
+        }
+        return new Key(theme, realmId + '\n' + locale + '\n' + baseUri + '\n' + template + '\n' + subjectKey
+                + '\n' + subjectAttributes + '\n' + plainAttributes);
+    }
+
+    private static boolean isPlain(Object value) {
+        if (value instanceof Collection<?> values) {
+            return values.stream().allMatch(EmailSpliceCache::isPlain);
+        }
+        return value == null || value instanceof CharSequence || value instanceof Number || value instanceof Boolean;
+    }
+
+    /**
+     * @return null if the email has never been rendered
+     */
+    public Fragments get(Key key) {
+        return fragments.get(key);
+    }
+
+    public void put(Key key, Fragments value) {
+        fragments.put(key, value);
+    }
+
+    /**
+     * @param template spliced template
+     * @param renderer renders the email with the given slot values
+     * @param values   slot values of the real email
+     * @param email    parts of the real email : subject, text body and html body
+     */
+    public Fragments learn(String template, Renderer renderer, Map<String, String> values, String[] email)
+            throws EmailException {
+        return Fragments.learn(templates.get(template), renderer, values, email);
+    }
+
+    /**
+     * Renders an email template with the given slot values in place of the real ones
+     */
+    @FunctionalInterface
+    public interface Renderer {
+
+        /**
+         * @param values  value of each slot
+         * @param variant 0 or 1, selects one of two sentinel users whose data all differ
+         * @return subject, text body and html body
+         */
+        String[] render(Map<String, String> values, int variant) throws EmailException;
+    }
+
+    /**
+     * Splice plans of the parts of an email : subject, text body and html body
+     */
+    public static class Fragments {
+
+        public static final Fragments NOT_SPLICEABLE = new Fragments(null);
+
+        // A null plan is a part the template doesn't render
+        private final SplicePlan[] plans;
+
+        private Fragments(SplicePlan[] plans) {
+            this.plans = plans;
+        }
+
+        static Fragments learn(List<String> slots, Renderer renderer, Map<String, String> values, String[] email)
+                throws EmailException {
+            Map<String, String> tokens = new HashMap<>();
+            Map<String, String> specialTokens = new HashMap<>();
+            for (int i = 0; i < slots.size(); i++) {
+                tokens.put(slots.get(i), SplicePlan.token(i));
+                specialTokens.put(slots.get(i), SplicePlan.specialToken(i));
+            }
+            // Rendered for different users, so any user data read by the template breaks the plan
+            String[] rendered = renderer.render(tokens, 0);
+            String[] renderedSpecial = renderer.render(specialTokens, 1);
+
+            SplicePlan[] plans = new SplicePlan[rendered.length];
+            for (int i = 0; i < plans.length; i++) {
+                if (rendered[i] == null && renderedSpecial[i] == null) {
+                    continue;
+                }
+                plans[i] = SplicePlan.learn(slots, rendered[i], renderedSpecial[i]);
+                if (plans[i] == null) {
+                    return NOT_SPLICEABLE;
+                }
+            }
+            Fragments fragments = new Fragments(plans);
+            if (!Arrays.equals(fragments.apply(values), email)) {
+                return NOT_SPLICEABLE;
+            }
+            return fragments;
+        }
+
+        public boolean isSpliceable() {
+            return this != NOT_SPLICEABLE;
+        }
+
+        public String[] apply(Map<String, String> values) {
+            String[] parts = new String[plans.length];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = plans[i] != null ? plans[i].apply(values) : null;
+            }
+            return parts;
+        }
+    }
+
+    public static class Key {
+
+        // Compared by identity, a redeployed theme is a new instance
+        private final Theme theme;
+        private final String value;
+
+        private Key(Theme theme, String value) {
+            this.theme = theme;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && theme == other.theme && value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(theme) + value.hashCode();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package fr.lva.keycloak.email.theme;
+
+import org.keycloak.models.UserModel;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * User exposing sentinel values instead of a profile, used to render the static part of an email.
+ * <p>
+ * Only the locale of the real user is kept. The two variants differ in every value, each
+ * holding the splice marker, so a template printing or testing the user renders differently
+ * and its splice plan is never cached.
+ */
+public final class SentinelUser {
+
+    private SentinelUser() {
+        // Utility class
+    }
+
+    /**
+     * @param user    real user, only its locale is read
+     * @param variant 0 or 1
+     */
+    public static UserModel of(UserModel user, int variant) {
+        String suffix = SplicePlan.MARKER + "user" + variant;
+        String id = "00000000-0000-0000-0000-" + suffix;
+        Map<String, List<String>> attributes = new HashMap<>();
+        attributes.put(UserModel.USERNAME, List.of("username-" + suffix));
+        attributes.put(UserModel.EMAIL, List.of("email-" + suffix + "@example.invalid"));
+        attributes.put(UserModel.FIRST_NAME, List.of("first-name-" + suffix));
+        attributes.put(UserModel.LAST_NAME, List.of("last-name-" + suffix));
+        String locale = user.getFirstAttribute(UserModel.LOCALE);
+        if (locale != null) {
+            attributes.put(UserModel.LOCALE, List.of(locale));
+        }
+
+        return (UserModel) Proxy.newProxyInstance(UserModel.class.getClassLoader(), new Class<?>[]{UserModel.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getId" -> id;
+                    case "getUsername" -> attributes.get(UserModel.USERNAME).get(0);
+                    case "getEmail" -> attributes.get(UserModel.EMAIL).get(0);
+                    case "getFirstName" -> attributes.get(UserModel.FIRST_NAME).get(0);
+                    case "getLastName" -> attributes.get(UserModel.LAST_NAME).get(0);
+                    case "getAttributes" -> attributes;
+                    case "getFirstAttribute" -> {
+                        List<String> values = attributes.get((String) args[0]);
+                        yield values != null ? values.get(0) : null;
+                    }
+                    case "getAttributeStream" -> attributes.getOrDefault((String) args[0], List.of()).stream();
+                    case "isEnabled" -> variant == 0;
+                    case "isEmailVerified" -> variant == 0;
+                    case "getCreatedTimestamp" -> variant == 0 ? 0L : 1L;
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "toString" -> "SentinelUser" + variant;
+                    default -> defaultValue(method.getReturnType());
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == Stream.class) {
+            return Stream.empty();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,168 @@
+package fr.lva.keycloak.email.theme;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rendered email part split around the values of its declared slots.
+ * <p>
+ * The part is rendered once with a sentinel token in place of each slot value. The text
+ * between the tokens is kept as is, and the escaping applied by the template to each value
+ * is learnt from a second render with sentinels holding every supported special character.
+ */
+public class SplicePlan {
+
+    static final String MARKER = "kcsplice";
+    // URL characters other than letters and digits, a value holding anything else is always rendered
+    static final String SPECIAL_CHARACTERS = "-._~:/?#[]@!$&'()*+,;=%";
+
+    private enum Escaping {
+        RAW,
+        // FreeMarker HTML output format
+        HTML;
+
+        String apply(String value) {
+            if (this == RAW) {
+                return value;
+            }
+            StringBuilder escaped = new StringBuilder(value.length() + 16);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '&' -> escaped.append("&amp;");
+                    case '<' -> escaped.append("&lt;");
+                    case '>' -> escaped.append("&gt;");
+                    case '"' -> escaped.append("&quot;");
+                    case '\'' -> escaped.append("&#39;");
+                    default -> escaped.append(c);
+                }
+            }
+            return escaped.toString();
+        }
+    }
+
+    private final String[] segments;
+    private final String[] slots;
+    private final Escaping[] escapings;
+    private final int staticLength;
+
+    private SplicePlan(String[] segments, String[] slots, Escaping[] escapings) {
+        this.segments = segments;
+        this.slots = slots;
+        this.escapings = escapings;
+        int length = 0;
+        for (String segment : segments) {
+            length += segment.length();
+        }
+        this.staticLength = length;
+    }
+
+    /**
+     * Sentinel used to find the value of a slot in the rendered output
+     *
+     * @param index index of the slot in the template declaration
+     */
+    public static String token(int index) {
+        return MARKER + index + "x";
+    }
+
+    /**
+     * Sentinel used to learn how the value of a slot is escaped
+     */
+    public static String specialToken(int index) {
+        return token(index) + SPECIAL_CHARACTERS;
+    }
+
+    /**
+     * @return true if the escaping of every character of the value is known
+     */
+    public static boolean isSpliceable(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                    || SPECIAL_CHARACTERS.indexOf(c) >= 0)) {
+                return false;
+            }
+        }
+        return !value.isEmpty();
+    }
+
+    /**
+     * @param slots           declared slots, in declaration order
+     * @param rendered        part rendered with the {@link #token(int)} sentinels
+     * @param renderedSpecial part rendered with the {@link #specialToken(int)} sentinels
+     * @return null if the part can't be spliced, ex : a value is transformed by the template
+     */
+    public static SplicePlan learn(List<String> slots, String rendered, String renderedSpecial) {
+        if (rendered == null || renderedSpecial == null) {
+            return null;
+        }
+        List<String> segments = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        int position = 0;
+        while (true) {
+            int next = -1;
+            int nextIndex = -1;
+            for (int i = 0; i < slots.size(); i++) {
+                int found = rendered.indexOf(token(i), position);
+                if (found >= 0 && (next < 0 || found < next)) {
+                    next = found;
+                    nextIndex = i;
+                }
+            }
+            if (nextIndex < 0) {
+                segments.add(rendered.substring(position));
+                break;
+            }
+            segments.add(rendered.substring(position, next));
+            indexes.add(nextIndex);
+            position = next + token(nextIndex).length();
+        }
+        for (String segment : segments) {
+            if (segment.contains(MARKER)) {
+                // Partially escaped or truncated value, or sentinel user data
+                return null;
+            }
+        }
+
+        Escaping[] escapings = new Escaping[indexes.size()];
+        if (!renderedSpecial.startsWith(segments.get(0))) {
+            return null;
+        }
+        position = segments.get(0).length();
+        for (int i = 0; i < indexes.size(); i++) {
+            String following = segments.get(i + 1);
+            for (Escaping escaping : Escaping.values()) {
+                String value = escaping.apply(specialToken(indexes.get(i)));
+                if (renderedSpecial.startsWith(value, position)
+                        && renderedSpecial.startsWith(following, position + value.length())) {
+                    escapings[i] = escaping;
+                    position += value.length() + following.length();
+                    break;
+                }
+            }
+            if (escapings[i] == null) {
+                return null;
+            }
+        }
+        if (position != renderedSpecial.length()) {
+            return null;
+        }
+        String[] slotNames = indexes.stream().map(slots::get).toArray(String[]::new);
+        return new SplicePlan(segments.toArray(new String[0]), slotNames, escapings);
+    }
+
+    /**
+     * @param values value of every slot, all {@link #isSpliceable(String)}
+     */
+    public String apply(Map<String, String> values) {
+        StringBuilder output = new StringBuilder(staticLength + 64 * slots.length);
+        output.append(segments[0]);
+        for (int i = 0; i < slots.length; i++) {
+            output.append(escapings[i].apply(values.get(slots[i])));
+            output.append(segments[i + 1]);
+        }
+        return output.toString();
+    }
+}
@@ -4,4 +4,10 @@ public class Messages extends org.keycloak.services.messages.Messages {
 
     public static final String INVALID_EMAIL_CONFIRM = "invalidEmailConfirmMessage";
 
+    public static final String REGISTRATION_THROTTLED = "registrationThrottledMessage";
+
+    public static final String EMAIL_DOMAIN_TYPO = "emailDomainTypoMessage";
+
+    public static final String EMAIL_DOMAIN_INVALID = "emailDomainInvalidMessage";
+
 }
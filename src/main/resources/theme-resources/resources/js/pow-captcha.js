@@ -0,0 +1,49 @@
+// Proof of work of the registration form, see ProofOfWorkVerifierProvider
+(function () {
+    var params = new URL(document.currentScript.src).searchParams;
+    var challenge = params.get('challenge');
+    var difficulty = parseInt(params.get('difficulty'), 10);
+    var encoder = new TextEncoder();
+
+    function leadingZeroBits(hash) {
+        var bits = 0;
+        for (var i = 0; i < hash.length; i++) {
+            if (hash[i] !== 0) {
+                return bits + Math.clz32(hash[i]) - 24;
+            }
+            bits += 8;
+        }
+        return bits;
+    }
+
+    // Started with the page, usually solved before the form is filled
+    var solution = (async function () {
+        for (var nonce = 0; ; nonce++) {
+            var hash = new Uint8Array(await crypto.subtle.digest('SHA-256', encoder.encode(challenge + ':' + nonce)));
+            if (leadingZeroBits(hash) >= difficulty) {
+                return String(nonce);
+            }
+        }
+    })();
+
+    document.addEventListener('submit', function (event) {
+        var form = event.target;
+        if (form.querySelector('input[name="captcha-response"]')) {
+            return;
+        }
+        event.preventDefault();
+        var submitter = event.submitter;
+        solution.then(function (nonce) {
+            var input = document.createElement('input');
+            input.type = 'hidden';
+            input.name = 'captcha-response';
+            input.value = nonce;
+            form.appendChild(input);
+            if (form.requestSubmit) {
+                form.requestSubmit(submitter);
+            } else {
+                form.submit();
+            }
+        });
+    }, true);
+})();
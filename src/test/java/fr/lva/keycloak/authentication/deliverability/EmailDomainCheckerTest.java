@@ -0,0 +1,124 @@
+package fr.lva.keycloak.authentication.deliverability;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EmailDomainCheckerTest {
+
+    private static final long TIMEOUT_MILLIS = 200;
+
+    private EmailDomainChecker checker;
+
+    @After
+    public void close() {
+        if (checker != null) {
+            checker.close();
+        }
+    }
+
+    @Test
+    public void suggestsTheDomainOfAKnownTypo() {
+        checker = checker(domain -> true);
+
+        DomainCheck check = checker.check("Jean.Dupont@GMIAL.com").join();
+
+        assertFalse(check.isValid());
+        assertEquals("Jean.Dupont@gmail.com", check.getSuggestedEmail());
+    }
+
+    @Test
+    public void refusesADomainWithoutMailServer() {
+        checker = checker(domain -> !domain.equals("no-mail.example"));
+
+        assertSame(DomainCheck.VALID, checker.check("user@example.com").join());
+        assertSame(DomainCheck.NO_MAIL_SERVER, checker.check("user@no-mail.example").join());
+    }
+
+    @Test
+    public void cachesTheDnsAnswers() {
+        AtomicInteger lookups = new AtomicInteger();
+        checker = checker(domain -> {
+            lookups.incrementAndGet();
+            return false;
+        });
+
+        checker.check("first@no-mail.example").join();
+        DomainCheck check = checker.check("second@NO-MAIL.example.").join();
+
+        assertSame(DomainCheck.NO_MAIL_SERVER, check);
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void acceptsADomainNotResolvedBeforeTheDeadline() {
+        checker = checker(domain -> {
+            try {
+                TimeUnit.SECONDS.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        });
+
+        long start = System.nanoTime();
+        DomainCheck check = checker.check("user@slow.example").join();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertSame(DomainCheck.VALID, check);
+        assertTrue("Answered after " + elapsedMillis + " ms", elapsedMillis < 2_000);
+    }
+
+    @Test
+    public void acceptsWithoutCachingWhenTheDnsFails() {
+        AtomicInteger lookups = new AtomicInteger();
+        checker = checker(domain -> {
+            if (lookups.incrementAndGet() == 1) {
+                throw new NamingException("DNS server unreachable");
+            }
+            return false;
+        });
+
+        assertSame(DomainCheck.VALID, checker.check("user@flaky.example").join());
+        assertSame(DomainCheck.NO_MAIL_SERVER, checker.check("user@flaky.example").join());
+    }
+
+    @Test
+    public void queriesEachRecordTypeAlone() {
+        Map<String, String[]> records = Map.of(
+                "gmail.com.", new String[]{"MX", "5 gmail-smtp-in.l.google.com."},
+                "a-only.example.", new String[]{"A", "192.0.2.1"});
+        checker = checker(new JndiDomainResolver((name, types) -> {
+            BasicAttributes answer = new BasicAttributes();
+            if (types.length > 1) {
+                // Minimal answer of the resolvers to an ANY query, without MX nor A (RFC 8482)
+                answer.put("HINFO", "RFC8482 \"\"");
+                return answer;
+            }
+            String[] record = records.get(name);
+            if (record != null && record[0].equals(types[0])) {
+                answer.put(record[0], record[1]);
+            }
+            return answer;
+        }));
+
+        assertSame(DomainCheck.VALID, checker.check("user@gmail.com").join());
+        assertSame(DomainCheck.VALID, checker.check("user@a-only.example").join());
+        assertSame(DomainCheck.NO_MAIL_SERVER, checker.check("user@no-mail.example").join());
+    }
+
+    private static EmailDomainChecker checker(DomainResolver resolver) {
+        return new EmailDomainChecker(resolver, EmailDomainChecker.parseTypos("gmial.com=gmail.com"),
+                TIMEOUT_MILLIS, 2, 100, 3600);
+    }
+}
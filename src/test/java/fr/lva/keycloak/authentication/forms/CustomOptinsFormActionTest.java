@@ -0,0 +1,87 @@
+package fr.lva.keycloak.authentication.forms;
+
+import org.junit.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CustomOptinsFormActionTest {
+
+    private final RealmModel realm = stub(RealmModel.class, Map.of());
+    // Users by username, their email as single value
+    private final Map<String, String> users = new HashMap<>();
+    private final List<String> added = new ArrayList<>();
+    private final KeycloakSession session = stub(KeycloakSession.class, Map.of("users", args -> userProvider()));
+
+    @Test
+    public void createsTheUserNamedAfterItsEmail() {
+        UserModel user = CustomOptinsFormAction.addUser(session, realm, "jean.dupont@example.com");
+
+        assertNotNull(user);
+        assertEquals("jean.dupont@example.com", users.get("jean.dupont@example.com"));
+    }
+
+    @Test
+    public void refusesAnEmailTakenByAnotherUsername() {
+        users.put("jdupont", "jean.dupont@example.com");
+
+        assertNull(CustomOptinsFormAction.addUser(session, realm, "jean.dupont@example.com"));
+        assertTrue(added.isEmpty());
+    }
+
+    @Test
+    public void refusesATakenUsername() {
+        users.put("jean.dupont@example.com", "other@example.com");
+
+        assertNull(CustomOptinsFormAction.addUser(session, realm, "jean.dupont@example.com"));
+    }
+
+    /**
+     * Users of the realm, as seen before the commit : the email of a new user isn't flushed yet
+     */
+    private UserProvider userProvider() {
+        return stub(UserProvider.class, Map.of(
+                "getUserByEmail", args -> users.entrySet().stream()
+                        .filter(user -> user.getValue().equals(args[1]))
+                        .findFirst()
+                        .map(user -> stub(UserModel.class, Map.of("getUsername", ignored -> user.getKey())))
+                        .orElse(null),
+                "addUser", args -> {
+                    String username = (String) args[1];
+                    if (users.containsKey(username)) {
+                        throw new ModelDuplicateException("User exists with same username");
+                    }
+                    added.add(username);
+                    return stub(UserModel.class, Map.of("setEmail", email -> users.put(username, (String) email[0])));
+                }));
+    }
+
+    /**
+     * @param methods answers by method name, other methods return null or false
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Function<Object[], Object> answer = methods.get(method.getName());
+            if (answer != null) {
+                Object result = answer.apply(args);
+                return method.getReturnType() == void.class ? null : result;
+            }
+            return method.getReturnType() == boolean.class ? false : null;
+        });
+    }
+}
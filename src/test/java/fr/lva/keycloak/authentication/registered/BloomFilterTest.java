@@ -0,0 +1,54 @@
+package fr.lva.keycloak.authentication.registered;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+
+    @Test
+    public void containsEveryAddedValue() {
+        BloomFilter filter = BloomFilter.create(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.add("user" + i + "@example.com");
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain("user" + i + "@example.com"));
+        }
+    }
+
+    @Test
+    public void keepsTheFalsePositiveRate() {
+        BloomFilter filter = BloomFilter.create(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.add("user" + i + "@example.com");
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain("other" + i + "@example.org")) {
+                falsePositives++;
+            }
+        }
+        // 1% expected, room for the variance
+        assertTrue(falsePositives + " false positives", falsePositives < 2_000);
+    }
+
+    @Test
+    public void isSaturatedOnceMoreValuesThanExpectedAreAdded() {
+        BloomFilter filter = BloomFilter.create(100, 0.01);
+        for (int i = 0; i < 100; i++) {
+            filter.add("user" + i + "@example.com");
+        }
+        assertFalse(filter.isSaturated());
+
+        filter.add("one-more@example.com");
+        assertTrue(filter.isSaturated());
+    }
+
+    @Test
+    public void emptyFilterContainsNothing() {
+        BloomFilter filter = BloomFilter.create(0, 0.01);
+        assertFalse(filter.mightContain("user@example.com"));
+    }
+}
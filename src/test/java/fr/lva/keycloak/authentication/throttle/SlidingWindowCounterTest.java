@@ -0,0 +1,62 @@
+package fr.lva.keycloak.authentication.throttle;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlidingWindowCounterTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+    @Test
+    public void countsTheHitsOfAKey() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(HOUR, 1024);
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, counter.increment("192.0.2.1"), 0.0);
+        }
+        assertEquals(1, counter.increment("192.0.2.2"), 0.0);
+    }
+
+    @Test
+    public void neverUnderestimatesCollidingKeys() {
+        // 2 cells per row for 100 keys, most of them collide
+        SlidingWindowCounter counter = new SlidingWindowCounter(HOUR, 2);
+        Map<String, Integer> hits = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            String key = "user" + (i % 100) + "@example.com";
+            int count = hits.merge(key, 1, Integer::sum);
+            assertTrue(counter.increment(key) >= count);
+        }
+    }
+
+    @Test
+    public void forgetsTheHitsOlderThanTwoWindows() throws InterruptedException {
+        long window = TimeUnit.MILLISECONDS.toNanos(50);
+        SlidingWindowCounter counter = new SlidingWindowCounter(window, 1024);
+        for (int i = 0; i < 10; i++) {
+            counter.increment("192.0.2.1");
+        }
+        TimeUnit.NANOSECONDS.sleep(3 * window);
+
+        assertEquals(1, counter.increment("192.0.2.1"), 0.0);
+    }
+
+    @Test
+    public void weightsThePreviousWindow() throws InterruptedException {
+        long window = TimeUnit.MILLISECONDS.toNanos(200);
+        SlidingWindowCounter counter = new SlidingWindowCounter(window, 1024);
+        for (int i = 0; i < 10; i++) {
+            counter.increment("192.0.2.1");
+        }
+        // Within the next window, part of the previous hits are still counted
+        TimeUnit.NANOSECONDS.sleep(window);
+        double estimate = counter.increment("192.0.2.1");
+
+        assertTrue("Estimate " + estimate, estimate > 1 && estimate <= 11);
+    }
+}
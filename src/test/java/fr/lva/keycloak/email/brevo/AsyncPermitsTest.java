@@ -0,0 +1,85 @@
+package fr.lva.keycloak.email.brevo;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncPermitsTest {
+
+    @Test
+    public void grantsAvailablePermitsImmediately() {
+        AsyncPermits permits = new AsyncPermits(2);
+        assertTrue(permits.acquireAsync().isDone());
+        assertTrue(permits.acquireAsync().isDone());
+        assertFalse(permits.acquireAsync().isDone());
+    }
+
+    @Test
+    public void handsReleasedPermitsToTheWaitersInOrder() {
+        AsyncPermits permits = new AsyncPermits(1);
+        permits.acquireAsync();
+        CompletableFuture<Void> first = permits.acquireAsync();
+        CompletableFuture<Void> second = permits.acquireAsync();
+
+        permits.release();
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+
+        permits.release();
+        assertTrue(second.isDone());
+    }
+
+    @Test
+    public void skipsCancelledWaiters() {
+        AsyncPermits permits = new AsyncPermits(1);
+        permits.acquireAsync();
+        CompletableFuture<Void> cancelled = permits.acquireAsync();
+        CompletableFuture<Void> waiting = permits.acquireAsync();
+        cancelled.cancel(false);
+
+        permits.release();
+        assertTrue(waiting.isDone());
+        assertFalse(permits.acquireAsync().isDone());
+    }
+
+    @Test
+    public void permitReleasedWithoutWaiterIsAvailableAgain() {
+        AsyncPermits permits = new AsyncPermits(1);
+        permits.acquireAsync();
+        permits.release();
+        assertTrue(permits.acquireAsync().isDone());
+    }
+
+    @Test
+    public void interruptedAcquireDoesNotKeepAPermit() throws Exception {
+        AsyncPermits permits = new AsyncPermits(1);
+        permits.acquireAsync();
+
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            started.countDown();
+            try {
+                permits.acquire();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        waiter.start();
+        started.await();
+        // Let the waiter block on its permit
+        TimeUnit.MILLISECONDS.sleep(50);
+        waiter.interrupt();
+        waiter.join(TimeUnit.SECONDS.toMillis(5));
+        assertTrue(failure.get() instanceof InterruptedException);
+
+        permits.release();
+        assertTrue(permits.acquireAsync().isDone());
+    }
+}
@@ -0,0 +1,116 @@
+package fr.lva.keycloak.email.brevo;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BrevoCircuitBreakerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(5);
+
+    @Test
+    public void staysClosedUntilTheMinimumCalls() {
+        BrevoCircuitBreaker breaker = breaker(60_000);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.record(true, FAST);
+        }
+        assertEquals(BrevoCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensOnTheFailureRate() {
+        BrevoCircuitBreaker breaker = breaker(60_000);
+        for (int i = 0; i < 5; i++) {
+            breaker.tryAcquire();
+            breaker.record(i % 2 == 0, FAST);
+        }
+        assertEquals(BrevoCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void opensOnTheSlowCallRate() {
+        BrevoCircuitBreaker breaker = breaker(60_000);
+        for (int i = 0; i < 5; i++) {
+            breaker.tryAcquire();
+            breaker.record(false, SLOW);
+        }
+        assertEquals(BrevoCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void failuresLeaveTheWindow() {
+        BrevoCircuitBreaker breaker = breaker(60_000);
+        breaker.tryAcquire();
+        breaker.record(true, FAST);
+        for (int i = 0; i < 20; i++) {
+            breaker.tryAcquire();
+            breaker.record(false, FAST);
+        }
+        // 3 failures out of the last 10 calls, the first one left the window
+        for (int i = 0; i < 3; i++) {
+            breaker.tryAcquire();
+            breaker.record(true, FAST);
+        }
+        assertEquals(BrevoCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void letsTrialCallsThroughOnceHalfOpen() {
+        BrevoCircuitBreaker breaker = open(breaker(0));
+        assertTrue(breaker.tryAcquire());
+        assertEquals(BrevoCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+
+        breaker.record(false, FAST);
+        breaker.record(false, FAST);
+        assertEquals(BrevoCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void reopensOnAFailedTrialCall() {
+        BrevoCircuitBreaker breaker = open(breaker(60_000));
+        assertFalse(breaker.tryAcquire());
+
+        BrevoCircuitBreaker halfOpen = open(breaker(0));
+        assertTrue(halfOpen.tryAcquire());
+        halfOpen.record(true, FAST);
+        assertEquals(BrevoCircuitBreaker.State.OPEN, halfOpen.getState());
+    }
+
+    @Test
+    public void releaseGivesBackATrialCall() {
+        BrevoCircuitBreaker breaker = open(breaker(0));
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+
+        // Rate limited trial call, says nothing about Brevo
+        breaker.release();
+        assertTrue(breaker.tryAcquire());
+        assertEquals(BrevoCircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    /**
+     * Window of 10 calls, opens from 5 calls with 40% of failures or slow calls, 2 trial calls
+     */
+    private static BrevoCircuitBreaker breaker(long openMillis) {
+        return new BrevoCircuitBreaker(10, 5, 40, 1000, 40, openMillis, 2);
+    }
+
+    private static BrevoCircuitBreaker open(BrevoCircuitBreaker breaker) {
+        for (int i = 0; i < 5; i++) {
+            breaker.tryAcquire();
+            breaker.record(true, FAST);
+        }
+        assertEquals(BrevoCircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
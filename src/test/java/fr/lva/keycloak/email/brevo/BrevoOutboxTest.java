@@ -0,0 +1,134 @@
+package fr.lva.keycloak.email.brevo;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BrevoOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversEmailsNotAcknowledged() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("outbox.jsonl");
+        BrevoOutbox.Entry delivered = BrevoOutbox.Entry.of(message("delivered@example.com"));
+        BrevoOutbox.Entry pending = BrevoOutbox.Entry.of(message("pending@example.com"));
+
+        BrevoOutbox outbox = new BrevoOutbox(path, 1);
+        outbox.append(delivered).join();
+        outbox.append(pending).join();
+        outbox.acknowledge(delivered);
+        outbox.close();
+
+        BrevoOutbox reopened = new BrevoOutbox(path, 1);
+        List<BrevoOutbox.Entry> recovered = reopened.recover();
+        reopened.close();
+
+        assertEquals(1, recovered.size());
+        BrevoOutbox.Entry entry = recovered.get(0);
+        assertEquals(pending.getId(), entry.getId());
+        assertEquals("realm-id", entry.getMessage().getRealmId());
+        assertEquals("pending@example.com", entry.getMessage().getRecipient());
+        assertEquals("Subject", entry.getMessage().getSubject());
+        assertEquals("<p>html</p>", entry.getMessage().getHtmlBody());
+    }
+
+    @Test
+    public void journalIsOnlyReadableByItsOwner() throws Exception {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path path = folder.getRoot().toPath().resolve("outbox.jsonl");
+        // Journal left by an older version, readable by everyone
+        Files.writeString(path, "");
+        Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-r--r--"));
+
+        BrevoOutbox outbox = new BrevoOutbox(path, 1);
+        outbox.append(BrevoOutbox.Entry.of(message("user@example.com"))).join();
+        outbox.close();
+
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(path)));
+    }
+
+    @Test
+    public void doesNotJournalSmtpConfig() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("outbox.jsonl");
+        BrevoOutbox outbox = new BrevoOutbox(path, 1);
+        outbox.append(BrevoOutbox.Entry.of(message("user@example.com"))).join();
+        outbox.close();
+
+        assertTrue(Files.readString(path).contains("user@example.com"));
+        assertFalse(Files.readString(path).contains("s3cr3t"));
+        BrevoOutbox reopened = new BrevoOutbox(path, 1);
+        assertNull(reopened.recover().get(0).getMessage().getSmtpConfig());
+        reopened.close();
+    }
+
+    @Test
+    public void acknowledgementWrittenBeforeItsRecordIsFlushedStillWins() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("outbox.jsonl");
+        BrevoOutbox outbox = new BrevoOutbox(path, 1);
+        for (int i = 0; i < 100; i++) {
+            BrevoOutbox.Entry entry = BrevoOutbox.Entry.of(message("user" + i + "@example.com"));
+            outbox.append(entry);
+            outbox.acknowledge(entry);
+        }
+        outbox.close();
+
+        BrevoOutbox reopened = new BrevoOutbox(path, 1);
+        assertTrue(reopened.recover().isEmpty());
+        reopened.close();
+    }
+
+    @Test
+    public void compactsTheJournalWhenOpened() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("outbox.jsonl");
+        BrevoOutbox outbox = new BrevoOutbox(path, 1);
+        for (int i = 0; i < 10; i++) {
+            BrevoOutbox.Entry entry = BrevoOutbox.Entry.of(message("user" + i + "@example.com"));
+            outbox.append(entry).join();
+            if (i > 0) {
+                outbox.acknowledge(entry);
+            }
+        }
+        outbox.close();
+
+        BrevoOutbox reopened = new BrevoOutbox(path, 1);
+        reopened.close();
+
+        List<String> lines = Files.readAllLines(path);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("user0@example.com"));
+    }
+
+    @Test
+    public void refusesAppendsOnceClosed() throws Exception {
+        BrevoOutbox outbox = new BrevoOutbox(folder.getRoot().toPath().resolve("outbox.jsonl"), 1);
+        outbox.close();
+        try {
+            outbox.append(BrevoOutbox.Entry.of(message("user@example.com"))).join();
+            fail("Append accepted by a closed outbox");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private static BrevoMessage message(String recipient) {
+        return new BrevoMessage("realm-id", Map.of("host", "smtp.example.com", "password", "s3cr3t"),
+                "no-reply@example.com", "Example", recipient, "Subject", "<p>html</p>", "text", "<p>html</p>");
+    }
+}
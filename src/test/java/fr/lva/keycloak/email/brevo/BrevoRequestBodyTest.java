@@ -0,0 +1,140 @@
+package fr.lva.keycloak.email.brevo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BrevoRequestBodyTest {
+
+    private static final byte[] CONTENT = "{\"to\":[{\"email\":\"user@example.com\"}],\"subject\":\"Bienvenue\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void publishesTheWrittenBytesAcrossChunks() {
+        BrevoRequestBody body = new BrevoRequestBody(new ByteBufferPool(8, 16));
+        body.write(CONTENT, 0, 10);
+        body.write(CONTENT[10]);
+        body.write(CONTENT, 11, CONTENT.length - 11);
+
+        assertEquals(CONTENT.length, body.contentLength());
+        CollectingSubscriber subscriber = new CollectingSubscriber(1);
+        body.subscribe(subscriber);
+        assertTrue(subscriber.completed);
+        assertArrayEquals(CONTENT, subscriber.bytes.toByteArray());
+    }
+
+    @Test
+    public void eachSubscriptionReadsTheWholeBody() {
+        BrevoRequestBody body = new BrevoRequestBody(new ByteBufferPool(8, 16));
+        body.write(CONTENT, 0, CONTENT.length);
+
+        CollectingSubscriber first = new CollectingSubscriber(Long.MAX_VALUE);
+        body.subscribe(first);
+        CollectingSubscriber second = new CollectingSubscriber(3);
+        body.subscribe(second);
+
+        assertArrayEquals(CONTENT, first.bytes.toByteArray());
+        assertArrayEquals(CONTENT, second.bytes.toByteArray());
+    }
+
+    @Test
+    public void stopsOnceCancelled() {
+        BrevoRequestBody body = new BrevoRequestBody(new ByteBufferPool(8, 16));
+        body.write(CONTENT, 0, CONTENT.length);
+
+        CollectingSubscriber subscriber = new CollectingSubscriber(0);
+        body.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(10);
+
+        assertEquals(8, subscriber.bytes.size());
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void signalsAnErrorOnNonPositiveDemand() {
+        BrevoRequestBody body = new BrevoRequestBody(new ByteBufferPool(8, 16));
+        body.write(CONTENT, 0, CONTENT.length);
+
+        CollectingSubscriber subscriber = new CollectingSubscriber(0);
+        body.subscribe(subscriber);
+        subscriber.subscription.request(0);
+
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(0, subscriber.bytes.size());
+    }
+
+    @Test
+    public void releaseGivesTheChunksBackToThePool() {
+        AtomicInteger released = new AtomicInteger();
+        ByteBufferPool pool = new ByteBufferPool(8, 16) {
+            @Override
+            public void release(ByteBuffer buffer) {
+                released.incrementAndGet();
+                super.release(buffer);
+            }
+        };
+        BrevoRequestBody body = new BrevoRequestBody(pool);
+        body.write(CONTENT, 0, 20);
+
+        body.release();
+        assertEquals(3, released.get());
+        // Released once only
+        body.release();
+        assertEquals(3, released.get());
+    }
+
+    /**
+     * Requests {@code batch} buffers on subscription and after each one
+     */
+    private static class CollectingSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+        private final long batch;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private Flow.Subscription subscription;
+        private boolean completed;
+        private Throwable error;
+
+        private CollectingSubscriber(long batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (batch > 0) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            byte[] chunk = new byte[item.remaining()];
+            item.get(chunk);
+            bytes.writeBytes(chunk);
+            if (batch > 0 && batch < Long.MAX_VALUE) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            this.completed = true;
+        }
+    }
+}
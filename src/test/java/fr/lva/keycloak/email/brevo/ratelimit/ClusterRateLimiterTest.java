@@ -0,0 +1,97 @@
+package fr.lva.keycloak.email.brevo.ratelimit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterRateLimiterTest {
+
+    private static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final List<ClusterRateLimiter> limiters = new ArrayList<>();
+
+    @After
+    public void close() {
+        limiters.forEach(ClusterRateLimiter::close);
+    }
+
+    @Test
+    public void nodesShareTheBudgetOfTheSecond() throws InterruptedException {
+        LeaseStore store = new LocalLeaseStore();
+        ClusterRateLimiter node1 = limiter(store, 10, 5);
+        ClusterRateLimiter node2 = limiter(store, 10, 5);
+
+        int granted = countWithinOneSecond(node1, node2);
+
+        assertEquals(10, granted);
+    }
+
+    @Test
+    public void lastChunkHoldsTheRemainderOfTheRate() throws InterruptedException {
+        LeaseStore store = new LocalLeaseStore();
+        // Chunks of 4, 4 and 2
+        ClusterRateLimiter node1 = limiter(store, 10, 4);
+        ClusterRateLimiter node2 = limiter(store, 10, 4);
+
+        assertEquals(10, countWithinOneSecond(node1, node2));
+    }
+
+    @Test
+    public void chunksAreNeverLargerThanTheRate() throws InterruptedException {
+        ClusterRateLimiter node = limiter(new LocalLeaseStore(), 3, 100);
+
+        assertEquals(3, countWithinOneSecond(node));
+    }
+
+    @Test
+    public void usesTheLocalLimitWhenTheStoreFails() throws InterruptedException {
+        ClusterRateLimiter node = limiter((key, lifespanSeconds) -> {
+            throw new IllegalStateException("Cluster unavailable");
+        }, 10, 5);
+
+        assertTrue(node.acquire(MAX_WAIT));
+    }
+
+    @Test
+    public void nonBlockingCallsLeaseInTheBackground() throws InterruptedException {
+        ClusterRateLimiter node = limiter(new LocalLeaseStore(), 1000, 10);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        boolean granted = false;
+        while (!granted && System.nanoTime() < deadline) {
+            granted = node.acquire(0);
+            if (!granted) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+        }
+        assertTrue(granted);
+    }
+
+    private ClusterRateLimiter limiter(LeaseStore store, int permitsPerSecond, int chunkSize) {
+        ClusterRateLimiter limiter = new ClusterRateLimiter(BrevoRateLimiter.UNLIMITED, store, permitsPerSecond, chunkSize);
+        limiters.add(limiter);
+        return limiter;
+    }
+
+    /**
+     * Permits granted to the nodes taking turns, from the start of a second until they are all refused
+     */
+    private static int countWithinOneSecond(ClusterRateLimiter... nodes) throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(1000 - System.currentTimeMillis() % 1000);
+        long second = System.currentTimeMillis() / 1000;
+        int granted = 0;
+        for (int i = 0; i < 50; i++) {
+            if (nodes[i % nodes.length].acquire(MAX_WAIT)) {
+                granted++;
+            }
+        }
+        assertEquals("Not counted within one second", second, System.currentTimeMillis() / 1000);
+        return granted;
+    }
+}
@@ -0,0 +1,54 @@
+package fr.lva.keycloak.email.brevo.ratelimit;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketRateLimiterTest {
+
+    @Test
+    public void allowsTheBurstWithoutWaiting() throws InterruptedException {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.acquire(0));
+        }
+        assertFalse(limiter.acquire(0));
+    }
+
+    @Test
+    public void waitsForTheNextPermit() throws InterruptedException {
+        // One permit every 100 ms
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10, 1);
+        assertTrue(limiter.acquire(0));
+
+        long start = System.nanoTime();
+        assertTrue(limiter.acquire(TimeUnit.SECONDS.toNanos(1)));
+        long waited = System.nanoTime() - start;
+        assertTrue("Waited " + waited + " ns", waited >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void refusesWithoutWaitingWhenThePermitIsTooFar() throws InterruptedException {
+        // One permit every second
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, 1);
+        assertTrue(limiter.acquire(0));
+
+        long start = System.nanoTime();
+        assertFalse(limiter.acquire(TimeUnit.MILLISECONDS.toNanos(100)));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void refusedCallsDoNotConsumePermits() throws InterruptedException {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(20, 1);
+        assertTrue(limiter.acquire(0));
+        for (int i = 0; i < 100; i++) {
+            assertFalse(limiter.acquire(0));
+        }
+        // Next permit 50 ms after the first one, not pushed back by the refusals
+        assertTrue(limiter.acquire(TimeUnit.MILLISECONDS.toNanos(200)));
+    }
+}
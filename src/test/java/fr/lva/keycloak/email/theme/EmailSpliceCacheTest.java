@@ -0,0 +1,106 @@
+package fr.lva.keycloak.email.theme;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EmailSpliceCacheTest {
+
+    private static final String TEMPLATE = "password-reset.ftl";
+    private static final String LINK = "https://sso.example.com/realms/edu/login-actions/action-token?key=eyJh.eyJ&client_id=app";
+
+    private final EmailSpliceCache cache = new EmailSpliceCache(
+            EmailSpliceCache.parseTemplates(TEMPLATE + "=link"), 16, 300);
+
+    @Test
+    public void splicedEmailMatchesTheFullRender() throws Exception {
+        BiFunction<String, String, String[]> template = (link, user) -> new String[]{
+                "Reset your password",
+                "Click " + link + " to reset your password.\n" + link,
+                "<p><a href=\"" + html(link) + "\">" + html(link) + "</a></p>"
+        };
+        EmailSpliceCache.Fragments fragments = learn(template);
+
+        assertTrue(fragments.isSpliceable());
+        for (String link : List.of(LINK, "https://sso.example.com/t?a='1'&b=[2]#x", "https://sso.example.com/%20;(x)*")) {
+            assertArrayEquals(template.apply(link, "bob"), fragments.apply(Map.of("link", link)));
+        }
+    }
+
+    @Test
+    public void partNotRenderedStaysMissing() throws Exception {
+        EmailSpliceCache.Fragments fragments = learn((link, user) -> new String[]{"Subject", "Click " + link, null});
+
+        assertTrue(fragments.isSpliceable());
+        assertNull(fragments.apply(Map.of("link", LINK))[2]);
+    }
+
+    @Test
+    public void templatePrintingTheUserIsNotSpliceable() throws Exception {
+        EmailSpliceCache.Fragments fragments = learn((link, user) -> new String[]{
+                "Subject", "Hello " + user + ", click " + link, null
+        });
+
+        assertFalse(fragments.isSpliceable());
+    }
+
+    @Test
+    public void templateTestingTheUserIsNotSpliceable() throws Exception {
+        // Both sentinel users differ, the branch taken for one of them doesn't match the other
+        EmailSpliceCache.Fragments fragments = learn((link, user) -> new String[]{
+                "Subject", (user.endsWith("0") ? "Welcome back, click " : "Click ") + link, null
+        });
+
+        assertFalse(fragments.isSpliceable());
+    }
+
+    @Test
+    public void templateTransformingTheSlotIsNotSpliceable() throws Exception {
+        EmailSpliceCache.Fragments fragments = learn((link, user) -> new String[]{
+                "Subject", "Click " + link.toUpperCase(), null
+        });
+
+        assertFalse(fragments.isSpliceable());
+    }
+
+    @Test
+    public void onlySplicesPlainValuesWithKnownEscaping() {
+        assertNotNull(cache.slotValues(TEMPLATE, Map.of("link", LINK)));
+        assertNull(cache.slotValues(TEMPLATE, Map.of("link", "https://sso.example.com/a b")));
+        assertNull(cache.slotValues(TEMPLATE, Map.of("link", "https://sso.example.com/é")));
+        assertNull(cache.slotValues(TEMPLATE, Map.of("link", 42)));
+        assertNull(cache.slotValues(TEMPLATE, Map.of("realmName", "edu")));
+    }
+
+    @Test
+    public void isDisabledByDefault() {
+        EmailSpliceCache disabled = new EmailSpliceCache(EmailSpliceCache.parseTemplates(null), 16, 300);
+
+        assertFalse(disabled.isSpliced(TEMPLATE));
+    }
+
+    /**
+     * Learns the plans of a template rendering the link for user "alice"
+     *
+     * @param template renders the parts of the email from the link and the user name
+     */
+    private EmailSpliceCache.Fragments learn(BiFunction<String, String, String[]> template) throws Exception {
+        return cache.learn(TEMPLATE,
+                (values, variant) -> template.apply(values.get("link"), SplicePlan.MARKER + "user" + variant),
+                Map.of("link", LINK),
+                template.apply(LINK, "alice"));
+    }
+
+    private static String html(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("'", "&#39;");
+    }
+}